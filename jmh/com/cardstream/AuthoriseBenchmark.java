@@ -0,0 +1,75 @@
+/**
+ * JMH benchmark of a full authorisation against an in-process stub gateway
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// One authorise() each, over loopback to a stub gateway shared by every benchmark thread, so
+// -t measures contention for the connection pool as well
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+public class AuthoriseBenchmark {
+
+	private StubGateway gateway;
+	private PooledTransport transport;
+	private String url;
+	private int expiryYear;
+
+	@Setup
+	public void setUp() throws IOException {
+		gateway = new StubGateway(SdkBenchmark.KEY);
+		gateway.start();
+		url = gateway.getURL();
+		transport = new PooledTransport();
+		expiryYear = SdkBenchmark.expiryYear();
+	}
+
+	@TearDown
+	public void tearDown() {
+		transport.close();
+		gateway.stop();
+	}
+
+	@Benchmark
+	public int authorise() throws Exception {
+		Transaction transaction = new Transaction(url, "100001", SdkBenchmark.KEY);
+		transaction.setTransport(transport);
+		transaction.setType(Transaction.TYPE.ECOM);
+		transaction.setAction(Transaction.ACTION.SALE);
+		transaction.setAmount(1000);
+		transaction.setCountryCode("GB");
+		transaction.setCurrencyCode(826);
+		transaction.setCardNumber("4929421234600821");
+		transaction.setCardCVV("356");
+		transaction.setCardExpiryMonth(12);
+		transaction.setCardExpiryYear(expiryYear);
+		transaction.setCustomerName("John Smith");
+		transaction.authorise();
+		return transaction.getAuthResponse().getResponseCode();
+	}
+
+}
@@ -0,0 +1,143 @@
+/**
+ * JMH benchmarks of encoding, signing, parsing and validation
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// The SDK's per-request hot paths, one operation each. Run with: gradle jmh
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SdkBenchmark {
+
+	static final String KEY = "Circle4Take40Idea";
+	private static final byte[] REPLY = (
+		"merchantID=100001&action=SALE&type=1&amount=1000&currencyCode=826&countryCode=826" +
+		"&transactionUnique=5a1b2c3d4e5f6&orderRef=Test+Payment&responseCode=0" +
+		"&responseMessage=AUTHCODE%3A123456&xref=17120112ZQ14RY44HT27KNM&state=captured" +
+		"&cardNumberMask=492942%2A%2A%2A%2A%2A%2A0821&cardType=Visa+Credit&cardScheme=Visa" +
+		"&signature=2f7b0bca6fb01aa6a8e5bb2ce1ff7fa2c5b1c7b1"
+	).getBytes(StandardCharsets.ISO_8859_1);
+
+	private static final String[][] FIELDS = {
+		{"action", "SALE"},
+		{"amount", "1000"},
+		{"cardCVV", "356"},
+		{"cardExpiryMonth", "12"},
+		{"cardExpiryYear", "30"},
+		{"cardNumber", "4929421234600821"},
+		{"countryCode", "GB"},
+		{"currencyCode", "826"},
+		{"customerAddress", "Flat 6, Primrose Rise, 347 Lavender Road, Northampton"},
+		{"customerEmail", "john.smith@example.com"},
+		{"customerName", "John Smith"},
+		{"customerPhone", "01234 567890"},
+		{"customerPostcode", "NN17 8YG"},
+		{"merchantID", "100001"},
+		{"orderRef", "Test Payment"},
+		{"transactionUnique", "5a1b2c3d4e5f6"},
+		{"type", "1"},
+	};
+
+	private byte[] key;
+	private byte[] body;
+	private byte[] callback;
+	private String expiryDate;
+	private Transaction transaction;
+	private UniqueIdGenerator generator;
+	private CallbackVerifier verifier;
+
+	@Setup
+	public void setUp() {
+		key = KEY.getBytes();
+
+		TreeMap<String, String> fields = new TreeMap<>();
+		for (String[] field : FIELDS) {
+			fields.put(field[0], field[1]);
+		}
+		FormEncoder form = new FormEncoder();
+		for (Map.Entry<String, String> field : fields.entrySet()) {
+			form.add(field.getKey(), field.getValue());
+		}
+		body = form.toByteArray();
+		form.add("signature", Signer.get().signature(fields, key));
+		callback = form.toByteArray();
+
+		expiryDate = "12/" + expiryYear();
+		transaction = new Transaction("http://localhost/", "100001", KEY);
+		generator = new UniqueIdGenerator(1);
+		verifier = new CallbackVerifier(KEY);
+	}
+
+	@Benchmark
+	public int formEncoding() {
+		FormEncoder form = FormEncoder.get();
+		for (String[] field : FIELDS) {
+			form.add(field[0], field[1]);
+		}
+		return form.length();
+	}
+
+	@Benchmark
+	public String signing() {
+		return Signer.get().signature(body, 0, body.length, key);
+	}
+
+	@Benchmark
+	public int responseParsing() {
+		AuthResponse response = new AuthResponse(ResponseFields.parse(REPLY, 0, REPLY.length));
+		return response.getResponseCode() + response.getXref().length();
+	}
+
+	@Benchmark
+	public Transaction validation() throws Exception {
+		transaction.setAmount("10.00");
+		transaction.setCardNumber("4929421234600821");
+		transaction.setCardCVV("356");
+		transaction.setCardExpiryDate(expiryDate);
+		transaction.setCountryCode("gb");
+		transaction.setCurrencyCode("GBP");
+		transaction.setCustomerCountryCode("GBR");
+		return transaction;
+	}
+
+	@Benchmark
+	public String uniqueId() {
+		return generator.next();
+	}
+
+	@Benchmark
+	public int callbackVerification() throws Exception {
+		return verifier.verify(callback).getResponseCode();
+	}
+
+	// Two digits, a year ahead, so the test card never fails validation as expired
+	static int expiryYear() {
+		return (Calendar.getInstance().get(Calendar.YEAR) + 1) % 100;
+	}
+
+}
@@ -71,18 +71,23 @@ public class PaymentExample {
 			}
 
 			// Check the authorisation response
-			if (payment.getAuthResponseCode().equals("0")) {
-				System.out.println("Card authorised successfully");
-			} else if (payment.getAuthResponseCode().equals("2")) {
-				System.out.println("Card areferred");
-			} else if (payment.getAuthResponseCode().equals("4")) {
-				System.out.println("Card decline - keep card");
-			} else if (payment.getAuthResponseCode().equals("5")) {
-				System.out.println("Card declined");
-			} else if (payment.getAuthResponseCode().equals("30")) {
-				System.out.println("Authorisation failed: " + payment.getAuthMessage());
-			} else {
-				System.out.println("Unknown Cardstream response: "+payment.getAuthResponseCode()+": " + payment.getAuthMessage());
+			AuthResponse response = payment.getAuthResponse();
+			switch (response.getOutcome()) {
+				case AUTHORISED:
+					System.out.println("Card authorised successfully");
+					break;
+				case REFERRED:
+					System.out.println("Card referred");
+					break;
+				case DECLINED:
+					if (response.getResponseCode() == AuthResponse.DECLINED_KEEP_CARD) {
+						System.out.println("Card decline - keep card");
+					} else {
+						System.out.println("Card declined");
+					}
+					break;
+				default:
+					System.out.println("Authorisation failed: " + response.getResponseCode() + ": " + response.getMessage());
 			}
 
 		} catch (Exception e) {
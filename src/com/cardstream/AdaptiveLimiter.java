@@ -0,0 +1,293 @@
+/**
+ * Concurrency limit that adapts to the gateway.s round-trip times
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Caps the requests in flight to the gateway, adjusting the cap to what it can answer (AIMD on
+// latency). The cap grows by one per round trip while requests return close to the fastest
+// round trip seen recently, and shrinks by a tenth when one takes more than twice as long, times
+// out or gets a 5xx status. Requests over the cap wait up to maxWaitMillis and are then
+// rejected with LimitExceededException, rather than queueing on sockets.
+//
+// When capacity is short, sales and pre-authorisations are admitted first. Refunds and
+// verifications may only use part of the cap, so a backlog of them cannot hold back sales.
+// Share one instance between every client that talks to the same gateway.
+public final class AdaptiveLimiter {
+
+	public enum Priority {
+		HIGH(1.0),
+		NORMAL(0.9),
+		LOW(0.75);
+
+		private final double share;
+
+		Priority(double share) {
+			this.share = share;
+		}
+
+		public static Priority of(String action) {
+			if (action == null) {
+				return NORMAL;
+			}
+			switch (action) {
+				case "SALE":
+				case "PREAUTH":
+					return HIGH;
+				case "REFUND":
+				case "REFUND_SALE":
+				case "VERIFY":
+					return LOW;
+				default:
+					return NORMAL;
+			}
+		}
+	}
+
+	private static final double TOLERANCE = 2.0;
+	private static final double BACKOFF = 0.9;
+	// The fastest round trip is forgotten after this many samples, so it follows the network
+	private static final int RTT_WINDOW = 500;
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final long maxWaitNanos;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition[] admitted = new Condition[Priority.values().length];
+	private final int[] waiting = new int[Priority.values().length];
+	private final LongAdder rejected = new LongAdder();
+	private double limit;
+	private int inFlight;
+	private long minRttNanos = Long.MAX_VALUE;
+	private long windowMinRttNanos = Long.MAX_VALUE;
+	private int windowSamples;
+	private long lastDecreaseNanos;
+
+	public AdaptiveLimiter() {
+		this(20, 1, 500, 50);
+	}
+
+	public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, long maxWaitMillis) {
+		if (minLimit < 1) {
+			throw new IllegalArgumentException("minLimit must be at least 1");
+		}
+		if (maxLimit < minLimit) {
+			throw new IllegalArgumentException("maxLimit must be at least minLimit");
+		}
+		if (initialLimit < minLimit || initialLimit > maxLimit) {
+			throw new IllegalArgumentException("initialLimit must be between minLimit and maxLimit");
+		}
+		if (maxWaitMillis < 0) {
+			throw new IllegalArgumentException("maxWaitMillis must not be negative");
+		}
+		this.limit = initialLimit;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+		for (int i = 0; i < admitted.length; i++) {
+			admitted[i] = lock.newCondition();
+		}
+		this.lastDecreaseNanos = System.nanoTime();
+	}
+
+	public int getLimit() {
+		lock.lock();
+		try {
+			return (int) limit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getInFlight() {
+		lock.lock();
+		try {
+			return inFlight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getWaiting() {
+		lock.lock();
+		try {
+			int total = 0;
+			for (int count : waiting) {
+				total += count;
+			}
+			return total;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	public int getMinLimit() {
+		return this.minLimit;
+	}
+
+	public int getMaxLimit() {
+		return this.maxLimit;
+	}
+
+	public long getMaxWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos);
+	}
+
+	// Waits up to maxWaitMillis for room and returns the time the request was admitted, to be
+	// passed to release()
+	long acquire(Priority priority) throws LimitExceededException, InterruptedException {
+		return acquire(priority, maxWaitNanos);
+	}
+
+	// As acquire(), without waiting, for callers that must not block
+	long tryAcquire(Priority priority) throws LimitExceededException {
+		try {
+			return acquire(priority, 0);
+		} catch (InterruptedException e) {
+			// Not reached, as nothing waits
+			Thread.currentThread().interrupt();
+			throw new LimitExceededException("Interrupted");
+		}
+	}
+
+	private long acquire(Priority priority, long waitNanos) throws LimitExceededException, InterruptedException {
+		int level = priority.ordinal();
+		lock.lock();
+		try {
+			if (!admissible(level)) {
+				waiting[level]++;
+				try {
+					long remaining = waitNanos;
+					while (!admissible(level)) {
+						if (remaining <= 0) {
+							rejected.increment();
+							throw new LimitExceededException("Concurrency limit of " + (int) limit + " reached");
+						}
+						remaining = admitted[level].awaitNanos(remaining);
+					}
+				} finally {
+					waiting[level]--;
+					// The next waiter may be admissible now this one has gone, either way
+					signalNext();
+				}
+			}
+			inFlight++;
+			return System.nanoTime();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Gives back a slot that was not used, without counting it as a round trip
+	void abandon() {
+		lock.lock();
+		try {
+			inFlight--;
+			signalNext();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Reports how the request admitted at startNanos went. A dropped request is one that timed
+	// out or that the gateway was too busy to answer.
+	void release(long startNanos, boolean dropped) {
+		long now = System.nanoTime();
+		long rtt = now - startNanos;
+		lock.lock();
+		try {
+			int used = inFlight--;
+			if (dropped) {
+				decrease(startNanos, now);
+			} else {
+				if (rtt < windowMinRttNanos) {
+					windowMinRttNanos = rtt;
+				}
+				if (rtt < minRttNanos) {
+					minRttNanos = rtt;
+				}
+				if (++windowSamples >= RTT_WINDOW) {
+					minRttNanos = windowMinRttNanos;
+					windowMinRttNanos = Long.MAX_VALUE;
+					windowSamples = 0;
+				}
+
+				if (rtt > minRttNanos * TOLERANCE) {
+					decrease(startNanos, now);
+				} else if (used * 2 >= limit) {
+					// Only grow while the limit is being used, or it would drift up when idle
+					limit = Math.min(maxLimit, limit + 1 / limit);
+				}
+			}
+			signalNext();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Requests that started before the last decrease saw the old limit, so they do not
+	// shrink it again
+	private void decrease(long startNanos, long now) {
+		if (startNanos - lastDecreaseNanos >= 0) {
+			limit = Math.max(minLimit, limit * BACKOFF);
+			lastDecreaseNanos = now;
+		}
+	}
+
+	// Whether a request of this level may start now: there is room within its share of the
+	// limit and no request of a higher level is waiting
+	private boolean admissible(int level) {
+		for (int higher = 0; higher < level; higher++) {
+			if (waiting[higher] > 0) {
+				return false;
+			}
+		}
+		Priority priority = Priority.values()[level];
+		return inFlight < Math.max(minLimit, (int) (limit * priority.share));
+	}
+
+	private void signalNext() {
+		for (int level = 0; level < waiting.length; level++) {
+			if (waiting[level] > 0) {
+				admitted[level].signal();
+				return;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		lock.lock();
+		try {
+			return "AdaptiveLimiter{limit=" + (int) limit + ", inFlight=" + inFlight + ", rejected=" + rejected.sum() + ", minRtt=" + minRttNanos / 1000 + "us}";
+		} finally {
+			lock.unlock();
+		}
+	}
+
+}
@@ -0,0 +1,110 @@
+/**
+ * Typed result of an authorisation request
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+// The response code and outcome are read once when the response is parsed; every other
+// field is decoded from the reply only when it is asked for
+public final class AuthResponse {
+
+	public enum Outcome {
+		AUTHORISED,
+		REFERRED,
+		DECLINED,
+		FAILED
+	}
+
+	public static final int AUTHORISED = 0;
+	public static final int REFERRED = 2;
+	public static final int DECLINED_KEEP_CARD = 4;
+	public static final int DECLINED = 5;
+
+	// Returned by getResponseCode() when the reply carried no usable responseCode
+	public static final int NO_RESPONSE_CODE = -1;
+
+	private final int responseCode;
+	private final Outcome outcome;
+	private final ResponseFields fields;
+
+	AuthResponse(ResponseFields fields) {
+		int code;
+		try {
+			code = fields.getInt("responseCode", NO_RESPONSE_CODE);
+		} catch (NumberFormatException e) {
+			code = NO_RESPONSE_CODE;
+		}
+		this.responseCode = code;
+		this.outcome = outcome(code);
+		this.fields = fields;
+	}
+
+	static Outcome outcome(int responseCode) {
+		switch (responseCode) {
+			case AUTHORISED:
+				return Outcome.AUTHORISED;
+			case REFERRED:
+				return Outcome.REFERRED;
+			case DECLINED_KEEP_CARD:
+			case DECLINED:
+				return Outcome.DECLINED;
+			default:
+				return Outcome.FAILED;
+		}
+	}
+
+	public int getResponseCode() {
+		return this.responseCode;
+	}
+
+	public Outcome getOutcome() {
+		return this.outcome;
+	}
+
+	public boolean isAuthorised() {
+		return this.outcome == Outcome.AUTHORISED;
+	}
+
+	public String getMessage() {
+		return this.fields.get("responseMessage");
+	}
+
+	public String getXref() {
+		return this.fields.get("xref");
+	}
+
+	public String getTransactionUnique() {
+		return this.fields.get("transactionUnique");
+	}
+
+	public String getOrderDescription() {
+		return this.fields.get("orderDesc");
+	}
+
+	// Any other field returned by the gateway, or null
+	public String get(String key) {
+		return this.fields.get(key);
+	}
+
+	@Override
+	public String toString() {
+		return "AuthResponse{" + this.outcome + ", responseCode=" + this.responseCode + "}";
+	}
+
+}
@@ -0,0 +1,173 @@
+/**
+ * Line items of an itemised order
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Quantities and values are held in primitive arrays and the total is kept as items are added,
+// so orders with hundreds of lines cost no boxing, map entries or re-summing. Values are in
+// minor units, per unit of quantity.
+//
+// Items are sent as items[n][amount], items[n][description] and items[n][quantity], numbered
+// from 1, with amount the line total. Those keys are written straight into the request body in
+// the same order a sorted map of them would have, so the signature is unchanged.
+public final class Basket {
+
+	// Every item key starts with this, so the items form one run in the sorted request
+	static final String KEY_PREFIX = "items[";
+
+	private static final byte[] KEY_START = "items%5B".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] AMOUNT = "%5D%5Bamount%5D=".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] DESCRIPTION = "%5D%5Bdescription%5D=".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] QUANTITY = "%5D%5Bquantity%5D=".getBytes(StandardCharsets.ISO_8859_1);
+
+	private String[] descriptions;
+	private int[] quantities;
+	private int[] values;
+	private int size;
+	private long total;
+
+	public Basket() {
+		this(8);
+	}
+
+	public Basket(int capacity) {
+		descriptions = new String[Math.max(capacity, 1)];
+		quantities = new int[descriptions.length];
+		values = new int[descriptions.length];
+	}
+
+	public void add(String description, int quantity, int value) {
+		if (description == null || description.length() == 0) {
+			throw new IllegalArgumentException("Item description must not be blank");
+		}
+		if (quantity < 1) {
+			throw new IllegalArgumentException("Item quantity must be at least 1");
+		}
+		if (value < 0) {
+			throw new IllegalArgumentException("Item value must not be negative");
+		}
+		long line = (long) quantity * value;
+		if (line > Integer.MAX_VALUE || total + line > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Basket total is too large");
+		}
+
+		if (size == descriptions.length) {
+			int capacity = size * 2;
+			descriptions = Arrays.copyOf(descriptions, capacity);
+			quantities = Arrays.copyOf(quantities, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+		descriptions[size] = description;
+		quantities[size] = quantity;
+		values[size] = value;
+		size++;
+		total += line;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	// Sum of every line total, in minor units
+	public long getTotal() {
+		return this.total;
+	}
+
+	public String getDescription(int index) {
+		checkIndex(index);
+		return descriptions[index];
+	}
+
+	public int getQuantity(int index) {
+		checkIndex(index);
+		return quantities[index];
+	}
+
+	public int getValue(int index) {
+		checkIndex(index);
+		return values[index];
+	}
+
+	public void clear() {
+		Arrays.fill(descriptions, 0, size, null);
+		size = 0;
+		total = 0;
+	}
+
+	Basket copy() {
+		Basket copy = new Basket(size);
+		System.arraycopy(descriptions, 0, copy.descriptions, 0, size);
+		System.arraycopy(quantities, 0, copy.quantities, 0, size);
+		System.arraycopy(values, 0, copy.values, 0, size);
+		copy.size = size;
+		copy.total = total;
+		return copy;
+	}
+
+	boolean sameItems(Basket other) {
+		return size == other.size && total == other.total
+			&& Arrays.equals(quantities, 0, size, other.quantities, 0, size)
+			&& Arrays.equals(values, 0, size, other.values, 0, size)
+			&& Arrays.equals(descriptions, 0, size, other.descriptions, 0, size);
+	}
+
+	// Writes the items in the order their keys sort as strings. ']' sorts after every digit, so
+	// items[10] to items[19] come before items[1], which is a post-order walk of the decimal
+	// digits of 1..size.
+	void encode(FormEncoder form) {
+		for (int number = 1; number <= 9 && number <= size; number++) {
+			encodeFrom(form, number);
+		}
+	}
+
+	private void encodeFrom(FormEncoder form, int number) {
+		if (number <= size / 10) {
+			for (int digit = 0; digit <= 9 && number * 10 + digit <= size; digit++) {
+				encodeFrom(form, number * 10 + digit);
+			}
+		}
+		int index = number - 1;
+		writeKey(form, number, AMOUNT);
+		form.writeDecimal((long) quantities[index] * values[index]);
+		writeKey(form, number, DESCRIPTION);
+		form.encode(descriptions[index]);
+		writeKey(form, number, QUANTITY);
+		form.writeDecimal(quantities[index]);
+	}
+
+	private static void writeKey(FormEncoder form, int number, byte[] field) {
+		if (form.length() > 0) {
+			form.write('&');
+		}
+		form.write(KEY_START, 0, KEY_START.length);
+		form.writeDecimal(number);
+		form.write(field, 0, field.length);
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Item " + index + " of " + size);
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+/**
+ * Decodes a batch reply one result at a time
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// One form encoded reply per line. Each reply is indexed in place over the shared body when
+// next() reaches it, so nothing is decoded ahead of the caller. Blank lines are skipped.
+final class BatchReader implements Iterator<AuthResponse> {
+
+	private final byte[] data;
+	private final int end;
+	private final Charset charset;
+	private int position;
+
+	BatchReader(byte[] data, int offset, int length, Charset charset) {
+		this.data = data;
+		this.charset = charset;
+		this.end = offset + length;
+		this.position = offset;
+		skipBlankLines();
+	}
+
+	@Override
+	public boolean hasNext() {
+		return position < end;
+	}
+
+	@Override
+	public AuthResponse next() {
+		if (position >= end) {
+			throw new NoSuchElementException();
+		}
+		int start = position;
+		while (position < end && data[position] != '\n') {
+			position++;
+		}
+		AuthResponse response = new AuthResponse(ResponseFields.parse(data, start, position - start, charset));
+		skipBlankLines();
+		return response;
+	}
+
+	private void skipBlankLines() {
+		while (position < end && (data[position] == '\n' || data[position] == '\r')) {
+			position++;
+		}
+	}
+
+}
@@ -0,0 +1,228 @@
+/**
+ * Verifies the signature of results the gateway posts to a callbackURL
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.SignatureException;
+import java.util.*;
+import java.util.stream.IntStream;
+
+// Callbacks are signed like replies: the fields other than the signature, sorted by key and
+// URL encoded, then hashed with the pre-shared key. A callback whose fields already arrive
+// sorted and encoded that way, with the signature last, is hashed straight from the body;
+// any other is decoded, sorted and re-encoded first. Holds no per-callback state, so one
+// instance can be shared by every thread of a webhook handler.
+public final class CallbackVerifier {
+
+	private static final byte[] SIGNATURE = "signature".getBytes(StandardCharsets.ISO_8859_1);
+	// Bytes that FormEncoder writes as themselves: unreserved characters, and '+' for a space
+	private static final boolean[] PLAIN = new boolean[256];
+
+	static {
+		for (int c = 0; c < 128; c++) {
+			PLAIN[c] = FormEncoder.isUnreserved(c);
+		}
+		PLAIN['+'] = true;
+	}
+
+	private final byte[] preSharedKey;
+	private volatile int maxLength = 64 * 1024;
+
+	public CallbackVerifier(String preSharedKey) {
+		if (preSharedKey == null || preSharedKey.length() == 0) {
+			throw new IllegalArgumentException("preSharedKey must be set");
+		}
+		this.preSharedKey = preSharedKey.getBytes();
+	}
+
+	public CallbackVerifier(TransactionTemplate template) {
+		this.preSharedKey = template.getPreSharedKeyBytes();
+	}
+
+	// Longest body verify(InputStream, Charset) reads; callbacks are a few kilobytes, and this
+	// stops a webhook endpoint from being made to buffer whatever it is sent
+	public void setMaxLength(int maxLength) {
+		if (maxLength < 1) {
+			throw new IllegalArgumentException("maxLength must be at least 1");
+		}
+		this.maxLength = maxLength;
+	}
+
+	public int getMaxLength() {
+		return this.maxLength;
+	}
+
+	// Bodies that do not name a charset are decoded as UTF-8, as replies are
+	public AuthResponse verify(byte[] body) throws SignatureException {
+		return verify(body, 0, body.length, StandardCharsets.UTF_8);
+	}
+
+	// The callback's fields, if its signature verifies. The body must not change afterwards,
+	// as fields are decoded from it when asked for.
+	public AuthResponse verify(byte[] body, int offset, int length, Charset charset) throws SignatureException {
+		ResponseFields fields = ResponseFields.parse(body, offset, length, charset);
+		if (!verify(body, offset, length, fields)) {
+			throw new SignatureException("Callback signature does not verify");
+		}
+		return new AuthResponse(fields);
+	}
+
+	// Reads no more than maxLength bytes, and rejects a longer body without reading the rest
+	public AuthResponse verify(InputStream in, Charset charset) throws IOException, SignatureException {
+		int max = maxLength;
+		byte[] body = in.readNBytes(max + 1);
+		if (body.length > max) {
+			throw new IOException("Callback is longer than " + max + " bytes");
+		}
+		return verify(body, 0, body.length, charset);
+	}
+
+	public boolean isValid(byte[] body, int offset, int length) {
+		return verify(body, offset, length, ResponseFields.parse(body, offset, length, StandardCharsets.ISO_8859_1));
+	}
+
+	// Verifies the callbacks in parallel, one per core, and returns their fields in the same
+	// order, with null for each whose signature does not verify
+	public List<AuthResponse> verifyAll(List<byte[]> bodies) {
+		AuthResponse[] results = new AuthResponse[bodies.size()];
+		IntStream.range(0, results.length).parallel().forEach(i -> {
+			byte[] body = bodies.get(i);
+			ResponseFields fields = ResponseFields.parse(body, 0, body.length, StandardCharsets.UTF_8);
+			if (verify(body, 0, body.length, fields)) {
+				results[i] = new AuthResponse(fields);
+			}
+		});
+		return Arrays.asList(results);
+	}
+
+	private boolean verify(byte[] data, int offset, int length, ResponseFields fields) {
+		int signature = fields.indexOf("signature");
+		if (signature < 0) {
+			return false;
+		}
+		int expectedStart = fields.valueStart(signature);
+		int expectedLength = fields.valueEnd(signature) - expectedStart;
+
+		Signer signer = Signer.get();
+		if (signature > 0 && signature == fields.size() - 1 && isCanonical(data, fields, signature)) {
+			int start = fields.keyStart(0);
+			return signer.verify(data, start, fields.valueEnd(signature - 1) - start, preSharedKey, data, expectedStart, expectedLength);
+		}
+
+		// ISO-8859-1 decodes each byte to one char, so re-encoding reproduces the signed bytes
+		ResponseFields raw = ResponseFields.parse(data, offset, length, StandardCharsets.ISO_8859_1);
+		TreeMap<String, String> signed = new TreeMap<>();
+		for (int i = 0; i < raw.size(); i++) {
+			String key = raw.key(i);
+			if (!"signature".equals(key)) {
+				signed.put(key, raw.value(i));
+			}
+		}
+		return signer.verify(signed, preSharedKey, data, expectedStart, expectedLength);
+	}
+
+	// Whether the fields before the signature are exactly what encoding them in key order
+	// would produce: each key=value, strictly increasing keys, joined by single '&'s
+	private static boolean isCanonical(byte[] data, ResponseFields fields, int signature) {
+		for (int i = 0; i < signature; i++) {
+			int keyStart = fields.keyStart(i);
+			int keyEnd = fields.keyEnd(i);
+			if (fields.valueStart(i) != keyEnd + 1 || data[keyEnd] != '=') {
+				return false;
+			}
+			if (data[fields.valueEnd(i)] != '&' || fields.keyStart(i + 1) != fields.valueEnd(i) + 1) {
+				return false;
+			}
+			if (!isCanonical(data, keyStart, keyEnd) || !isCanonical(data, fields.valueStart(i), fields.valueEnd(i))) {
+				return false;
+			}
+			if (compare(data, keyStart, keyEnd, SIGNATURE, 0, SIGNATURE.length) == 0) {
+				return false;
+			}
+			if (i > 0 && compare(data, fields.keyStart(i - 1), fields.keyEnd(i - 1), data, keyStart, keyEnd) >= 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Whether FormEncoder would encode the decoded bytes of the range back to the same bytes
+	private static boolean isCanonical(byte[] data, int start, int end) {
+		for (int i = start; i < end; i++) {
+			int b = data[i] & 0xFF;
+			if (PLAIN[b]) {
+				continue;
+			}
+			if (b != '%' || i + 2 >= end || upperHex(data[i + 1]) < 0 || upperHex(data[i + 2]) < 0) {
+				return false;
+			}
+			int decoded = (upperHex(data[i + 1]) << 4) | upperHex(data[i + 2]);
+			if (FormEncoder.isUnreserved(decoded) || decoded == ' ') {
+				return false;
+			}
+			i += 2;
+		}
+		return true;
+	}
+
+	// Compares two canonically encoded ranges by their decoded bytes, which is how their
+	// ISO-8859-1 strings compare
+	private static int compare(byte[] a, int aStart, int aEnd, byte[] b, int bStart, int bEnd) {
+		int i = aStart;
+		int j = bStart;
+		while (i < aEnd && j < bEnd) {
+			int x = a[i] & 0xFF;
+			if (x == '+') {
+				x = ' ';
+			} else if (x == '%') {
+				x = (upperHex(a[i + 1]) << 4) | upperHex(a[i + 2]);
+				i += 2;
+			}
+			int y = b[j] & 0xFF;
+			if (y == '+') {
+				y = ' ';
+			} else if (y == '%') {
+				y = (upperHex(b[j + 1]) << 4) | upperHex(b[j + 2]);
+				j += 2;
+			}
+			if (x != y) {
+				return x - y;
+			}
+			i++;
+			j++;
+		}
+		return (i < aEnd ? 1 : 0) - (j < bEnd ? 1 : 0);
+	}
+
+	private static int upperHex(byte b) {
+		if (b >= '0' && b <= '9') {
+			return b - '0';
+		}
+		if (b >= 'A' && b <= 'F') {
+			return b - 'A' + 10;
+		}
+		return -1;
+	}
+
+}
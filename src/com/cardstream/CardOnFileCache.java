@@ -0,0 +1,66 @@
+/**
+ * Expiring, bounded map from customer IDs to gateway xrefs
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+// Repeat payments can be taken by referring to an earlier transaction's xref instead of
+// resending the card, so only the xref needs to be kept. Lookups are lock-free. Entries expire
+// ttlMillis after they were stored; once maxEntries is reached, expired entries are dropped
+// and then the oldest.
+public final class CardOnFileCache {
+
+	private final ExpiringCache<String> entries;
+
+	public CardOnFileCache(int maxEntries, long ttlMillis) {
+		this.entries = new ExpiringCache<>(maxEntries, ttlMillis);
+	}
+
+	// The customer's xref, or null if none is stored or it has expired
+	public String get(String customerId) {
+		return entries.get(customerId);
+	}
+
+	public void put(String customerId, String xref) {
+		if (customerId == null || xref == null) {
+			throw new IllegalArgumentException("customerId and xref must not be null");
+		}
+		entries.put(customerId, xref);
+	}
+
+	// Stores the xref of an authorised response, so the customer can pay again without their card
+	public void remember(String customerId, AuthResponse response) {
+		if (response.isAuthorised() && response.getXref() != null) {
+			put(customerId, response.getXref());
+		}
+	}
+
+	public void remove(String customerId) {
+		entries.remove(customerId);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+}
@@ -0,0 +1,129 @@
+/**
+ * Fails fast while the gateway is failing
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Opens after failureThreshold consecutive failures, rejecting every request until openMillis
+// has passed. A single probe request is then let through: success closes the breaker, failure
+// opens it again. Share one instance between every client that talks to the same gateway.
+public final class CircuitBreaker {
+
+	public enum State {
+		CLOSED,
+		OPEN,
+		HALF_OPEN
+	}
+
+	private final int failureThreshold;
+	private final long openNanos;
+	private final AtomicInteger failures = new AtomicInteger();
+	private volatile State state = State.CLOSED;
+	private long openedAt;
+	private long probeStartedAt;
+
+	public CircuitBreaker() {
+		this(5, 30000);
+	}
+
+	public CircuitBreaker(int failureThreshold, long openMillis) {
+		if (failureThreshold < 1) {
+			throw new IllegalArgumentException("failureThreshold must be at least 1");
+		}
+		if (openMillis < 0) {
+			throw new IllegalArgumentException("openMillis must not be negative");
+		}
+		this.failureThreshold = failureThreshold;
+		this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+	}
+
+	public State getState() {
+		return this.state;
+	}
+
+	public int getFailureThreshold() {
+		return this.failureThreshold;
+	}
+
+	public long getOpenMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(openNanos);
+	}
+
+	// Whether a request may be sent now; callers must report its outcome
+	public boolean allowRequest() {
+		if (state == State.CLOSED) {
+			return true;
+		}
+		synchronized (this) {
+			long now = System.nanoTime();
+			switch (state) {
+				case OPEN:
+					if (now - openedAt < openNanos) {
+						return false;
+					}
+					state = State.HALF_OPEN;
+					probeStartedAt = now;
+					return true;
+				case HALF_OPEN:
+					// Let another probe through if the last one never reported back
+					if (now - probeStartedAt < openNanos) {
+						return false;
+					}
+					probeStartedAt = now;
+					return true;
+				default:
+					return true;
+			}
+		}
+	}
+
+	public void recordSuccess() {
+		if (state == State.CLOSED) {
+			if (failures.get() != 0) {
+				failures.set(0);
+			}
+			return;
+		}
+		synchronized (this) {
+			failures.set(0);
+			state = State.CLOSED;
+		}
+	}
+
+	public void recordFailure() {
+		if (state == State.CLOSED && failures.incrementAndGet() < failureThreshold) {
+			return;
+		}
+		synchronized (this) {
+			if (state != State.OPEN) {
+				state = State.OPEN;
+				openedAt = System.nanoTime();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "CircuitBreaker{" + state + ", failures=" + failures.get() + "}";
+	}
+
+}
@@ -0,0 +1,163 @@
+/**
+ * Bounded map whose entries expire a fixed time after they were stored
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+// Every entry lives for the same ttl, so the order entries were stored in is the order they
+// expire in. A queue of them in that order lets expired entries, and beyond maxEntries the
+// oldest, be evicted from its head in constant time. Lookups are lock-free.
+final class ExpiringCache<V> {
+
+	private final int maxEntries;
+	private final long ttlNanos;
+	private final ConcurrentHashMap<String, Node<V>> entries = new ConcurrentHashMap<>();
+	// Replaced and removed entries stay queued until they reach the head
+	private final ConcurrentLinkedQueue<Node<V>> order = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger queued = new AtomicInteger();
+
+	ExpiringCache(int maxEntries, long ttlMillis) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries must be at least 1");
+		}
+		if (ttlMillis <= 0) {
+			throw new IllegalArgumentException("ttlMillis must be positive");
+		}
+		this.maxEntries = maxEntries;
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+	}
+
+	// The value, or null if none is stored or it has expired
+	V get(String key) {
+		Node<V> node = entries.get(key);
+		if (node == null) {
+			return null;
+		}
+		if (System.nanoTime() - node.expiresAt >= 0) {
+			entries.remove(key, node);
+			return null;
+		}
+		return node.value;
+	}
+
+	void put(String key, V value) {
+		long now = System.nanoTime();
+		Node<V> node = new Node<>(key, value, now + ttlNanos);
+		entries.put(key, node);
+		queue(node, now);
+	}
+
+	// Stores the value unless an unexpired one that matches is already stored, and returns
+	// whichever is stored once this returns
+	V putIfAbsent(String key, V value, Predicate<? super V> matches) {
+		long now = System.nanoTime();
+		Node<V> node = new Node<>(key, value, now + ttlNanos);
+		Node<V> stored = entries.compute(key, (k, current) ->
+			current != null && now - current.expiresAt < 0 && matches.test(current.value) ? current : node);
+		if (stored != node) {
+			return stored.value;
+		}
+		queue(node, now);
+		return value;
+	}
+
+	void remove(String key) {
+		entries.remove(key);
+	}
+
+	// Removes the key only while it still maps to this value
+	void remove(String key, V value) {
+		Node<V> node = entries.get(key);
+		if (node != null && node.value == value) {
+			entries.remove(key, node);
+		}
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	void clear() {
+		entries.clear();
+	}
+
+	private void queue(Node<V> node, long now) {
+		order.add(node);
+		queued.incrementAndGet();
+		if (mustEvict(now)) {
+			evict(now);
+		}
+	}
+
+	private boolean mustEvict(long now) {
+		if (entries.size() > maxEntries || queued.get() > 2 * maxEntries) {
+			return true;
+		}
+		Node<V> head = order.peek();
+		return head != null && (now - head.expiresAt >= 0 || entries.get(head.key) != head);
+	}
+
+	// Pops the head while it is expired or stale, or the cache is over maxEntries. A queue
+	// grown long with replaced entries is first cleared of them, which takes one pass per
+	// maxEntries puts.
+	private synchronized void evict(long now) {
+		if (queued.get() > 2 * maxEntries) {
+			order.removeIf(node -> {
+				if (entries.get(node.key) == node) {
+					return false;
+				}
+				queued.decrementAndGet();
+				return true;
+			});
+		}
+
+		Node<V> head;
+		while ((head = order.peek()) != null) {
+			boolean live = entries.get(head.key) == head;
+			if (live && now - head.expiresAt < 0 && entries.size() <= maxEntries) {
+				return;
+			}
+			order.poll();
+			queued.decrementAndGet();
+			if (live) {
+				entries.remove(head.key, head);
+			}
+		}
+	}
+
+	private static final class Node<V> {
+
+		final String key;
+		final V value;
+		final long expiresAt;
+
+		Node(String key, V value, long expiresAt) {
+			this.key = key;
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+}
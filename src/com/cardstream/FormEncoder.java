@@ -0,0 +1,175 @@
+/**
+ * Reusable application/x-www-form-urlencoded writer
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Produces exactly the bytes of URLEncoder.encode(s, "ISO-8859-1") joined with '=' and '&',
+// written straight into a buffer that is reused by each thread
+final class FormEncoder {
+
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final int RETAINED_CAPACITY = 64 * 1024;
+	private static final ThreadLocal<FormEncoder> LOCAL = ThreadLocal.withInitial(FormEncoder::new);
+
+	private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.ISO_8859_1);
+	private static final boolean[] UNRESERVED = new boolean[128];
+
+	static {
+		for (int c = 'a'; c <= 'z'; c++) {
+			UNRESERVED[c] = true;
+		}
+		for (int c = 'A'; c <= 'Z'; c++) {
+			UNRESERVED[c] = true;
+		}
+		for (int c = '0'; c <= '9'; c++) {
+			UNRESERVED[c] = true;
+		}
+		UNRESERVED['.'] = true;
+		UNRESERVED['-'] = true;
+		UNRESERVED['*'] = true;
+		UNRESERVED['_'] = true;
+	}
+
+	private byte[] buf = new byte[INITIAL_CAPACITY];
+	private int length = 0;
+
+	FormEncoder() {
+	}
+
+	// The calling thread's encoder, emptied. Its buffer is overwritten by the next call on the
+	// same thread, so copy it with toByteArray() before handing it to another thread.
+	static FormEncoder get() {
+		FormEncoder encoder = LOCAL.get();
+		encoder.reset();
+		return encoder;
+	}
+
+	void reset() {
+		if (buf.length > RETAINED_CAPACITY) {
+			buf = new byte[INITIAL_CAPACITY];
+		}
+		length = 0;
+	}
+
+	FormEncoder add(String key, String value) {
+		if (length > 0) {
+			write('&');
+		}
+		encode(key);
+		write('=');
+		encode(value);
+		return this;
+	}
+
+	// Appends a key=value pair that is already URL encoded
+	FormEncoder addEncoded(byte[] field) {
+		if (length > 0) {
+			write('&');
+		}
+		write(field, 0, field.length);
+		return this;
+	}
+
+	// Whether encode() writes this character as itself
+	static boolean isUnreserved(int c) {
+		return c < 128 && UNRESERVED[c];
+	}
+
+	byte[] buffer() {
+		return buf;
+	}
+
+	int length() {
+		return length;
+	}
+
+	byte[] toByteArray() {
+		return Arrays.copyOf(buf, length);
+	}
+
+	@Override
+	public String toString() {
+		return new String(buf, 0, length, StandardCharsets.ISO_8859_1);
+	}
+
+	void encode(String s) {
+		int n = s.length();
+		ensureCapacity(n * 3);
+		byte[] b = buf;
+		int pos = length;
+
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c < 128 && UNRESERVED[c]) {
+				b[pos++] = (byte) c;
+			} else if (c == ' ') {
+				b[pos++] = '+';
+			} else {
+				if (c > 0xFF) {
+					// Not representable in ISO-8859-1, so the charset substitutes '?' once per code point
+					if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+						i++;
+					}
+					c = '?';
+				}
+				b[pos++] = '%';
+				b[pos++] = HEX[c >> 4];
+				b[pos++] = HEX[c & 0xF];
+			}
+		}
+		length = pos;
+	}
+
+	void write(int b) {
+		ensureCapacity(1);
+		buf[length++] = (byte) b;
+	}
+
+	// Writes a non-negative number's digits, which never need encoding
+	void writeDecimal(long value) {
+		ensureCapacity(19);
+		int digits = 1;
+		for (long rest = value / 10; rest > 0; rest /= 10) {
+			digits++;
+		}
+		int pos = length + digits;
+		length = pos;
+		do {
+			buf[--pos] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value > 0);
+	}
+
+	void write(byte[] b, int off, int len) {
+		ensureCapacity(len);
+		System.arraycopy(b, off, buf, length, len);
+		length += len;
+	}
+
+	private void ensureCapacity(int extra) {
+		if (length + extra > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + extra));
+		}
+	}
+
+}
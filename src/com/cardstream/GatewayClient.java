@@ -0,0 +1,701 @@
+/**
+ * Thread-safe client that signs and sends requests for one merchant
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+// Owns the gateway URL, signing key and transport, and holds no per-request state, so a single
+// instance can be created at startup and used from any number of threads
+public class GatewayClient {
+
+	// Enough calls for the JIT to compile the hot paths at its first tier
+	private static final int WARM_UP_ITERATIONS = 2000;
+	private static final byte[] WARM_UP_REPLY = (
+		"action=SALE&amount=1000&currencyCode=826&merchantID=100001&responseCode=0" +
+		"&responseMessage=AUTHCODE%3A123456&state=captured&xref=17120112ZQ14RY44HT27KNM"
+	).getBytes(StandardCharsets.ISO_8859_1);
+
+	private final TransactionTemplate template;
+	private final URL url;
+	private final byte[] preSharedKey;
+	private final Transport transport;
+	private volatile RetryPolicy retryPolicy = RetryPolicy.NONE;
+	private volatile CircuitBreaker circuitBreaker;
+	private volatile AdaptiveLimiter limiter;
+	private volatile MetricsListener metricsListener;
+	private volatile Journal journal;
+	private volatile SignedRequestCache signedRequestCache;
+	private volatile URL batchURL;
+
+	public GatewayClient(String url, String merchantID, String preSharedKey) throws Exception {
+		this(new TransactionTemplate(url, merchantID, preSharedKey));
+	}
+
+	public GatewayClient(TransactionTemplate template) throws MalformedURLException {
+		this(template, null);
+	}
+
+	// Without a transport, requests use PooledTransport.getDefault() and asynchronous
+	// requests use HttpClientTransport.getDefault()
+	public GatewayClient(TransactionTemplate template, Transport transport) throws MalformedURLException {
+		this.template = template;
+		this.url = new URL(template.getGatewayURL());
+		this.preSharedKey = template.getPreSharedKeyBytes();
+		this.transport = transport;
+	}
+
+	// Used by Transaction, which carries its own URL, key and transport
+	GatewayClient(URL url, byte[] preSharedKey, Transport transport) {
+		this.template = null;
+		this.url = url;
+		this.preSharedKey = preSharedKey;
+		this.transport = transport;
+	}
+
+	// Requests are sent once unless a policy is set
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy == null ? RetryPolicy.NONE : retryPolicy;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return this.retryPolicy;
+	}
+
+	// Transport failures and HTTP 5xx responses count as failures; null disables
+	public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return this.circuitBreaker;
+	}
+
+	// Requests are not limited unless a limiter is set
+	public void setAdaptiveLimiter(AdaptiveLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	public AdaptiveLimiter getAdaptiveLimiter() {
+		return this.limiter;
+	}
+
+	// Receives BUILD, SIGN and PARSE timings and the outcome of every call; null disables.
+	// Set the same listener on a PooledTransport for its connection and I/O phases.
+	public void setMetricsListener(MetricsListener metricsListener) {
+		this.metricsListener = metricsListener;
+	}
+
+	public MetricsListener getMetricsListener() {
+		return this.metricsListener;
+	}
+
+	// Records each request before it is sent and its reply once received; null disables. A
+	// request turned away by the circuit breaker or limiter was never sent, so is not recorded.
+	public void setJournal(Journal journal) {
+		this.journal = journal;
+	}
+
+	public Journal getJournal() {
+		return this.journal;
+	}
+
+	// Resubmitted requests reuse their signed body, or their response once known; null disables
+	public void setSignedRequestCache(SignedRequestCache signedRequestCache) {
+		this.signedRequestCache = signedRequestCache;
+	}
+
+	public SignedRequestCache getSignedRequestCache() {
+		return this.signedRequestCache;
+	}
+
+	// Where authoriseBatch() posts its requests
+	public void setBatchURL(String batchURL) throws MalformedURLException {
+		this.batchURL = batchURL == null ? null : new URL(batchURL);
+	}
+
+	public String getBatchURL() {
+		URL batchURL = this.batchURL;
+		return batchURL == null ? null : batchURL.toString();
+	}
+
+	// Runs validation, encoding, signing and reply parsing enough times for the JIT to compile
+	// them, seeds the ID generator's SecureRandom, resolves the gateway's host name and opens
+	// this many pooled connections to it, so the first authorisations after startup do not
+	// pay for any of it. Nothing is sent. Asynchronous requests open their connections on
+	// first use, as HttpClient cannot open them ahead of a request.
+	public void warmUp(int connections) throws IOException {
+		UniqueIdGenerator.getDefault().next("", true);
+		for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+			GatewayRequest request = warmUpRequest();
+			sign(request, null);
+			AuthResponse response = new AuthResponse(ResponseFields.parse(WARM_UP_REPLY, 0, WARM_UP_REPLY.length, StandardCharsets.UTF_8));
+			response.getXref();
+		}
+
+		InetAddress.getAllByName(url.getHost());
+		Transport transport = syncTransport();
+		if (connections > 0 && transport instanceof PooledTransport) {
+			((PooledTransport) transport).preconnect(url, connections);
+		}
+	}
+
+	private GatewayRequest warmUpRequest() {
+		try {
+			Transaction transaction = new Transaction(url.toString(), "100001", "warmUp");
+			transaction.setType(Transaction.TYPE.ECOM);
+			transaction.setAction(Transaction.ACTION.SALE);
+			transaction.setAmount("10.00");
+			transaction.setCountryCode("GB");
+			transaction.setCurrencyCode("GBP");
+			transaction.setCardNumber("4929421234600821");
+			transaction.setCardCVV("356");
+			// A year ahead, so the card never fails validation as expired
+			transaction.setCardExpiryMonth(12);
+			transaction.setCardExpiryYear((Calendar.getInstance().get(Calendar.YEAR) + 1) % 100);
+			transaction.setCustomerName("John Smith");
+			transaction.setCustomerEmail("john.smith@example.com");
+			transaction.setCustomerCountryCode("GBR");
+			transaction.addItem("Warm up", 1, 1000);
+			return transaction.toRequest();
+		} catch (Exception e) {
+			throw new IllegalStateException("Warm-up transaction failed validation", e);
+		}
+	}
+
+	// A transaction pre-filled with this client's template fields
+	public Transaction newTransaction() {
+		if (template == null) {
+			throw new IllegalStateException("Client was not created from a template");
+		}
+		return template.newTransaction();
+	}
+
+	// A repeat payment against the card used for an earlier transaction. Only the merchantID,
+	// action, amount, xref and a new transactionUnique are sent; the gateway takes the card and
+	// customer details from the transaction the xref refers to.
+	public GatewayRequest newXrefRequest(Transaction.ACTION action, String xref, int amount) {
+		if (template == null) {
+			throw new IllegalStateException("Client was not created from a template");
+		}
+		if (xref == null || xref.length() == 0) {
+			throw new IllegalArgumentException("xref must not be blank");
+		}
+		if (amount <= 0) {
+			throw new IllegalArgumentException("amount must be positive");
+		}
+		TreeMap<String, String> fields = new TreeMap<>();
+		fields.put("merchantID", template.get("merchantID"));
+		fields.put("action", action.name());
+		fields.put("amount", Integer.toString(amount));
+		fields.put("xref", xref);
+		fields.put("transactionUnique", UniqueIdGenerator.getDefault().next());
+		return new GatewayRequest(null, fields);
+	}
+
+	public AuthResponse authorise(Transaction transaction) throws Exception {
+		return authorise(transaction.toRequest());
+	}
+
+	public AuthResponse authorise(GatewayRequest request) throws IOException {
+		MetricsListener metrics = metricsListener;
+		Journal journal = this.journal;
+		SignedRequestCache cache = signedRequestCache;
+		SignedRequestCache.Entry entry = null;
+		if (cache != null) {
+			entry = new SignedRequestCache.Entry(request);
+			SignedRequestCache.Entry first = cache.claim(entry);
+			if (first != entry) {
+				return await(first.answer());
+			}
+		}
+
+		AuthResponse response;
+		try {
+			long start = System.nanoTime();
+			PendingSend pending = journal == null ? null : new PendingSend(journal, Collections.singletonList(request));
+			FormEncoder form = sign(request, metrics);
+			AdaptiveLimiter.Priority priority = AdaptiveLimiter.Priority.of(request.get("action"));
+			response = parse(post(url, form.buffer(), form.length(), priority, pending, metrics, start), metrics);
+			if (metrics != null) {
+				metrics.onResponse(response.getResponseCode(), System.nanoTime() - start);
+			}
+		} catch (IOException | RuntimeException e) {
+			if (entry != null) {
+				cache.fail(entry, e);
+			}
+			throw e;
+		}
+		if (entry != null) {
+			cache.complete(entry, response);
+		}
+		journalResult(journal, request, response);
+		return response;
+	}
+
+	// Waits for the answer to the same request submitted earlier
+	private static AuthResponse await(CompletableFuture<AuthResponse> answer) throws IOException {
+		try {
+			return answer.get();
+		} catch (ExecutionException e) {
+			throw unwrap(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for the same request submitted earlier");
+		}
+	}
+
+	public List<AuthResponse> authoriseBatch(List<GatewayRequest> requests) throws IOException {
+		List<AuthResponse> responses = new ArrayList<>(requests.size());
+		authoriseBatch(requests, (request, response) -> responses.add(response));
+		return responses;
+	}
+
+	// Sends every request in one HTTP body and passes each reply to the consumer, in request
+	// order, as it is decoded. Each line of the body is a request signed exactly as authorise()
+	// signs it, and each line of the reply is a signed reply. This envelope is not part of the
+	// gateway's documented direct integration: point setBatchURL() at an endpoint that accepts
+	// it, such as StubGateway.getBatchURL(). A failed batch is retried as a whole under the
+	// retry policy, which is safe as every item keeps its transactionUnique.
+	public void authoriseBatch(List<GatewayRequest> requests, BiConsumer<GatewayRequest, AuthResponse> consumer) throws IOException {
+		URL target = batchURL;
+		if (target == null) {
+			throw new IllegalStateException("No batch URL has been set");
+		}
+		if (requests.isEmpty()) {
+			return;
+		}
+
+		MetricsListener metrics = metricsListener;
+		Journal journal = this.journal;
+		long start = System.nanoTime();
+		PendingSend pending = journal == null ? null : new PendingSend(journal, requests);
+
+		// The batch takes one slot, at the highest priority of its requests
+		FormEncoder batch = new FormEncoder();
+		AdaptiveLimiter.Priority priority = AdaptiveLimiter.Priority.LOW;
+		for (GatewayRequest request : requests) {
+			AdaptiveLimiter.Priority own = AdaptiveLimiter.Priority.of(request.get("action"));
+			if (own.compareTo(priority) < 0) {
+				priority = own;
+			}
+			FormEncoder form = sign(request, metrics);
+			batch.write(form.buffer(), 0, form.length());
+			batch.write('\n');
+		}
+
+		TransportResponse response = post(target, batch.buffer(), batch.length(), priority, pending, metrics, start);
+		BatchReader reader = new BatchReader(response.getBody(), 0, response.getLength(), charsetOf(response));
+		int count = 0;
+		while (reader.hasNext()) {
+			if (count == requests.size()) {
+				throw new IOException("Batch reply has more results than the " + requests.size() + " requests sent");
+			}
+			AuthResponse parsed = reader.next();
+			GatewayRequest request = requests.get(count++);
+			// Replies are matched by position, so a reply out of order must not be taken for another
+			String unique = request.getTransactionUnique();
+			if (unique == null || !unique.equals(parsed.getTransactionUnique())) {
+				throw new IOException("Batch reply " + count + " is for transactionUnique " + parsed.getTransactionUnique()
+					+ ", not " + unique);
+			}
+			if (metrics != null) {
+				metrics.onResponse(parsed.getResponseCode(), System.nanoTime() - start);
+			}
+			journalResult(journal, request, parsed);
+			consumer.accept(request, parsed);
+		}
+		if (count != requests.size()) {
+			throw new IOException("Batch reply has " + count + " results for " + requests.size() + " requests");
+		}
+	}
+
+	// Sends under the retry policy, limiter and circuit breaker until a response below HTTP 400
+	// arrives. Each attempt is admitted by the limiter separately.
+	private TransportResponse post(URL target, byte[] body, int length, AdaptiveLimiter.Priority priority, PendingSend pending,
+			MetricsListener metrics, long start) throws IOException {
+		RetryPolicy policy = retryPolicy;
+		CircuitBreaker breaker = circuitBreaker;
+		AdaptiveLimiter limiter = this.limiter;
+		Transport transport = syncTransport();
+
+		for (int attempt = 1; ; attempt++) {
+			IOException failure;
+			try {
+				TransportResponse response = send(transport, breaker, limiter, priority, pending, target, body, length);
+				checkStatus(response, target);
+				return response;
+			} catch (IOException e) {
+				failure = e;
+			}
+
+			// Nothing was sent, and without the journal nothing may be
+			if (pending != null && pending.failure == failure) {
+				if (metrics != null) {
+					metrics.onFailure(failure, System.nanoTime() - start);
+				}
+				throw failure;
+			}
+
+			long delay = policy.delayMillis(attempt);
+			if (!policy.shouldRetry(failure, attempt, delay, start)) {
+				if (metrics != null) {
+					metrics.onFailure(failure, System.nanoTime() - start);
+				}
+				throw failure;
+			}
+			if (metrics != null) {
+				metrics.onRetry(failure, attempt);
+			}
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted before retrying " + target);
+			}
+		}
+	}
+
+	// Never blocks the calling thread. With an adaptive limiter set, a request that finds it
+	// full fails at once with LimitExceededException rather than waiting up to maxWaitMillis
+	// for a slot as authorise() does, so callers wanting to wait must retry or queue it.
+	public CompletableFuture<AuthResponse> authoriseAsync(GatewayRequest request) {
+		return authoriseAsync(request, ForkJoinPool.commonPool());
+	}
+
+	public CompletableFuture<AuthResponse> authoriseAsync(GatewayRequest request, Executor executor) {
+		MetricsListener metrics = metricsListener;
+		Journal journal = this.journal;
+		SignedRequestCache cache = signedRequestCache;
+		SignedRequestCache.Entry entry = null;
+		if (cache != null) {
+			entry = new SignedRequestCache.Entry(request);
+			SignedRequestCache.Entry first = cache.claim(entry);
+			if (first != entry) {
+				return first.answer().copy();
+			}
+		}
+
+		long start = System.nanoTime();
+		CompletableFuture<AuthResponse> result = new CompletableFuture<>();
+		PendingSend pending = journal == null ? null : new PendingSend(journal, Collections.singletonList(request));
+		byte[] body;
+		try {
+			// The encoder buffer belongs to this thread, so the transport gets its own copy
+			body = sign(request, metrics).toByteArray();
+		} catch (RuntimeException e) {
+			if (entry != null) {
+				cache.fail(entry, e);
+			}
+			throw e;
+		}
+		AdaptiveLimiter.Priority priority = AdaptiveLimiter.Priority.of(request.get("action"));
+		sendAsync(asyncTransport(), retryPolicy, circuitBreaker, limiter, priority, pending, metrics, body, executor, result, 1, start);
+		if (journal == null && entry == null) {
+			return result;
+		}
+		SignedRequestCache.Entry claimed = entry;
+		return result.handle((response, error) -> {
+			if (error != null) {
+				if (claimed != null) {
+					cache.fail(claimed, error);
+				}
+				throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+			}
+			if (claimed != null) {
+				cache.complete(claimed, response);
+			}
+			journalResult(journal, request, response);
+			return response;
+		});
+	}
+
+	// The limiter is not waited for here, as that would hold the caller's thread: requests over
+	// the limit are rejected at once. The journal is, on the first attempt admitted, as the
+	// request must not be sent before it is recorded.
+	private void sendAsync(Transport transport, RetryPolicy policy, CircuitBreaker breaker, AdaptiveLimiter limiter,
+			AdaptiveLimiter.Priority priority, PendingSend pending, MetricsListener metrics, byte[] body, Executor executor,
+			CompletableFuture<AuthResponse> result, int attempt, long start) {
+		CompletableFuture<TransportResponse> sent = new CompletableFuture<>();
+		long admitted = 0;
+		try {
+			if (limiter != null) {
+				admitted = limiter.tryAcquire(priority);
+			}
+			if (breaker != null && !breaker.allowRequest()) {
+				if (limiter != null) {
+					limiter.abandon();
+				}
+				sent.completeExceptionally(circuitOpen());
+			} else if (!record(pending, limiter)) {
+				if (metrics != null) {
+					metrics.onFailure(pending.failure, System.nanoTime() - start);
+				}
+				result.completeExceptionally(pending.failure);
+				return;
+			} else {
+				try {
+					sent = transport.postAsync(url, body, 0, body.length, executor);
+				} catch (RuntimeException e) {
+					// Nothing was sent, so the slot goes back without a sample
+					if (limiter != null) {
+						limiter.abandon();
+					}
+					result.completeExceptionally(e);
+					return;
+				}
+				if (limiter != null) {
+					long admittedAt = admitted;
+					sent = sent.whenComplete((response, error) ->
+						limiter.release(admittedAt, error != null || response.getStatus() >= 500));
+				}
+			}
+		} catch (LimitExceededException e) {
+			sent.completeExceptionally(e);
+		}
+
+		sent.whenCompleteAsync((response, error) -> {
+			IOException failure;
+			try {
+				if (error != null) {
+					throw unwrap(error);
+				}
+				AuthResponse parsed = parse(record(breaker, response), metrics);
+				if (metrics != null) {
+					metrics.onResponse(parsed.getResponseCode(), System.nanoTime() - start);
+				}
+				result.complete(parsed);
+				return;
+			} catch (IOException e) {
+				if (breaker != null && !(e instanceof CircuitOpenException) && !(e instanceof LimitExceededException)
+						&& !(e instanceof HttpStatusException)) {
+					breaker.recordFailure();
+				}
+				failure = e;
+			} catch (RuntimeException e) {
+				result.completeExceptionally(e);
+				return;
+			}
+
+			long delay = policy.delayMillis(attempt);
+			if (!policy.shouldRetry(failure, attempt, delay, start)) {
+				if (metrics != null) {
+					metrics.onFailure(failure, System.nanoTime() - start);
+				}
+				result.completeExceptionally(failure);
+				return;
+			}
+			if (metrics != null) {
+				metrics.onRetry(failure, attempt);
+			}
+			Executor later = CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, executor);
+			later.execute(() -> sendAsync(transport, policy, breaker, limiter, priority, pending, metrics, body, executor, result, attempt + 1, start));
+		}, executor);
+	}
+
+	private TransportResponse send(Transport transport, CircuitBreaker breaker, AdaptiveLimiter limiter, AdaptiveLimiter.Priority priority,
+			PendingSend pending, URL target, byte[] body, int length) throws IOException {
+		long admitted = 0;
+		if (limiter != null) {
+			try {
+				admitted = limiter.acquire(priority);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting to send to " + target);
+			}
+		}
+		if (breaker != null && !breaker.allowRequest()) {
+			if (limiter != null) {
+				limiter.abandon();
+			}
+			throw circuitOpen();
+		}
+		if (!record(pending, limiter)) {
+			throw pending.failure;
+		}
+
+		TransportResponse response;
+		try {
+			response = transport.post(target, body, 0, length);
+		} catch (IOException | RuntimeException e) {
+			if (breaker != null && e instanceof IOException) {
+				breaker.recordFailure();
+			}
+			if (limiter != null) {
+				limiter.release(admitted, true);
+			}
+			throw e;
+		}
+		if (limiter != null) {
+			limiter.release(admitted, response.getStatus() >= 500);
+		}
+		return record(breaker, response);
+	}
+
+	// Journals the requests once admitted, before they are first sent. On failure the slot is
+	// given back unused and false is returned, with the error in pending.failure.
+	private static boolean record(PendingSend pending, AdaptiveLimiter limiter) {
+		if (pending == null || pending.recorded) {
+			return true;
+		}
+		try {
+			pending.journal.recordSends(pending.requests);
+			pending.recorded = true;
+			return true;
+		} catch (IOException e) {
+			pending.failure = e;
+			if (limiter != null) {
+				limiter.abandon();
+			}
+			return false;
+		}
+	}
+
+	// A 5xx status means the gateway is struggling; anything else means it answered
+	private static TransportResponse record(CircuitBreaker breaker, TransportResponse response) {
+		if (breaker != null) {
+			if (response.getStatus() >= 500) {
+				breaker.recordFailure();
+			} else {
+				breaker.recordSuccess();
+			}
+		}
+		return response;
+	}
+
+	private CircuitOpenException circuitOpen() {
+		return new CircuitOpenException("Circuit breaker is open for " + url);
+	}
+
+	private static IOException unwrap(Throwable error) {
+		Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+		if (cause instanceof IOException) {
+			return (IOException) cause;
+		}
+		if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		}
+		throw new CompletionException(cause);
+	}
+
+	private static void journalResult(Journal journal, GatewayRequest request, AuthResponse response) {
+		if (journal != null) {
+			try {
+				journal.recordResult(request.getTransactionUnique(), response);
+			} catch (IOException e) {
+				// The reply is still returned; the journal will just report the transaction as in doubt
+			}
+		}
+	}
+
+	private FormEncoder sign(GatewayRequest request, MetricsListener metrics) {
+		long start = metrics == null ? 0 : System.nanoTime();
+		FormEncoder form = FormEncoder.get();
+		request.encode(form);
+		if (metrics != null) {
+			long now = System.nanoTime();
+			metrics.onPhase(MetricsListener.Phase.BUILD, now - start);
+			start = now;
+		}
+		Signer.get().sign(form, preSharedKey);
+		if (metrics != null) {
+			metrics.onPhase(MetricsListener.Phase.SIGN, System.nanoTime() - start);
+		}
+		return form;
+	}
+
+	private AuthResponse parse(TransportResponse response, MetricsListener metrics) throws IOException {
+		checkStatus(response, url);
+		long start = metrics == null ? 0 : System.nanoTime();
+		AuthResponse parsed = new AuthResponse(ResponseFields.parse(response.getBody(), 0, response.getLength(), charsetOf(response)));
+		if (metrics != null) {
+			metrics.onPhase(MetricsListener.Phase.PARSE, System.nanoTime() - start);
+		}
+		return parsed;
+	}
+
+	// Replies that do not name a charset are decoded as UTF-8
+	private static Charset charsetOf(TransportResponse response) {
+		Charset charset = response.getCharset();
+		return charset == null ? StandardCharsets.UTF_8 : charset;
+	}
+
+	private static void checkStatus(TransportResponse response, URL target) throws HttpStatusException {
+		if (response.getStatus() >= 400) {
+			throw new HttpStatusException(response.getStatus(), target);
+		}
+	}
+
+	private Transport syncTransport() {
+		return transport == null ? PooledTransport.getDefault() : transport;
+	}
+
+	private Transport asyncTransport() {
+		return transport == null ? HttpClientTransport.getDefault() : transport;
+	}
+
+	// Requests to journal when, and only if, they are first admitted for sending. Attempts are
+	// made one after another, so needs no synchronization.
+	private static final class PendingSend {
+
+		final Journal journal;
+		final Collection<GatewayRequest> requests;
+		boolean recorded;
+		IOException failure;
+
+		PendingSend(Journal journal, Collection<GatewayRequest> requests) {
+			this.journal = journal;
+			this.requests = requests;
+		}
+	}
+
+	// Keeps the message HttpURLConnection used; only 5xx responses are worth retrying
+	static final class HttpStatusException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		final int status;
+
+		HttpStatusException(int status, URL url) {
+			super("Server returned HTTP response code: " + status + " for URL: " + url);
+			this.status = status;
+		}
+	}
+
+}
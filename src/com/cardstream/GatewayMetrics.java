@@ -0,0 +1,145 @@
+/**
+ * Lock-free MetricsListener keeping latency histograms and counters
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// One histogram per phase plus one for whole calls, and a counter per response code. Gateway
+// response codes below 256 are counted in a flat array, so recording never allocates.
+public final class GatewayMetrics implements MetricsListener {
+
+	private static final int DIRECT_CODES = 256;
+	private static final MetricsListener.Phase[] PHASES = MetricsListener.Phase.values();
+
+	private final LatencyHistogram[] phases = new LatencyHistogram[PHASES.length];
+	private final LatencyHistogram calls = new LatencyHistogram();
+	private final AtomicLongArray directCodes = new AtomicLongArray(DIRECT_CODES);
+	private final ConcurrentHashMap<Integer, LongAdder> otherCodes = new ConcurrentHashMap<>();
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder retries = new LongAdder();
+
+	public GatewayMetrics() {
+		for (int i = 0; i < phases.length; i++) {
+			phases[i] = new LatencyHistogram();
+		}
+	}
+
+	@Override
+	public void onPhase(MetricsListener.Phase phase, long nanos) {
+		phases[phase.ordinal()].record(nanos);
+	}
+
+	@Override
+	public void onResponse(int responseCode, long nanos) {
+		calls.record(nanos);
+		if (responseCode >= 0 && responseCode < DIRECT_CODES) {
+			directCodes.incrementAndGet(responseCode);
+		} else {
+			otherCodes.computeIfAbsent(responseCode, k -> new LongAdder()).increment();
+		}
+	}
+
+	@Override
+	public void onFailure(IOException error, long nanos) {
+		calls.record(nanos);
+		failures.increment();
+	}
+
+	@Override
+	public void onRetry(IOException error, int attempt) {
+		retries.increment();
+	}
+
+	public LatencyHistogram getLatency(MetricsListener.Phase phase) {
+		return phases[phase.ordinal()];
+	}
+
+	// Whole calls, successful or not, including retries
+	public LatencyHistogram getCallLatency() {
+		return this.calls;
+	}
+
+	public long getResponseCount(int responseCode) {
+		if (responseCode >= 0 && responseCode < DIRECT_CODES) {
+			return directCodes.get(responseCode);
+		}
+		LongAdder count = otherCodes.get(responseCode);
+		return count == null ? 0 : count.sum();
+	}
+
+	// Counts of every response code seen so far, in code order
+	public SortedMap<Integer, Long> getResponseCounts() {
+		TreeMap<Integer, Long> counts = new TreeMap<>();
+		for (int i = 0; i < DIRECT_CODES; i++) {
+			long count = directCodes.get(i);
+			if (count != 0) {
+				counts.put(i, count);
+			}
+		}
+		for (Map.Entry<Integer, LongAdder> code : otherCodes.entrySet()) {
+			counts.put(code.getKey(), code.getValue().sum());
+		}
+		return counts;
+	}
+
+	public long getFailureCount() {
+		return failures.sum();
+	}
+
+	public long getRetryCount() {
+		return retries.sum();
+	}
+
+	public void reset() {
+		for (LatencyHistogram phase : phases) {
+			phase.reset();
+		}
+		calls.reset();
+		for (int i = 0; i < DIRECT_CODES; i++) {
+			directCodes.set(i, 0);
+		}
+		otherCodes.clear();
+		failures.reset();
+		retries.reset();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder out = new StringBuilder();
+		out.append(String.format("calls %s failures=%d retries=%d%n", calls, getFailureCount(), getRetryCount()));
+		for (MetricsListener.Phase phase : PHASES) {
+			LatencyHistogram histogram = getLatency(phase);
+			if (histogram.getCount() > 0) {
+				out.append(String.format("%-8s%s%n", phase, histogram));
+			}
+		}
+		out.append("responseCodes");
+		for (Map.Entry<Integer, Long> code : getResponseCounts().entrySet()) {
+			out.append(' ').append(code.getKey()).append('=').append(code.getValue());
+		}
+		return out.toString();
+	}
+
+}
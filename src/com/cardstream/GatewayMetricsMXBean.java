@@ -0,0 +1,55 @@
+/**
+ * Management interface exposing GatewayMetrics over JMX
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.util.Map;
+
+// Latencies are in nanoseconds. Phase maps are keyed by MetricsListener.Phase name and only
+// hold phases that have been recorded.
+public interface GatewayMetricsMXBean {
+
+	long getCallCount();
+
+	long getFailureCount();
+
+	long getRetryCount();
+
+	double getMeanNanos();
+
+	long getP50Nanos();
+
+	long getP99Nanos();
+
+	long getMaxNanos();
+
+	Map<String, Long> getPhaseP50Nanos();
+
+	Map<String, Long> getPhaseP99Nanos();
+
+	Map<String, Long> getResponseCounts();
+
+	int getIdleConnections();
+
+	int getLeasedConnections();
+
+	void reset();
+
+}
@@ -0,0 +1,127 @@
+/**
+ * Immutable snapshot of a transaction's fields, ready to be signed and sent
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.util.*;
+
+// Created by Transaction.toRequest(). Holds no credentials: the GatewayClient that executes
+// it decides where it is sent and signs it with its own key.
+public final class GatewayRequest {
+
+	private static final Set<String> CARD_FIELDS = new HashSet<>(Arrays.asList(
+		"cardNumber", "cardCVV", "cardExpiryDate", "cardExpiryMonth", "cardExpiryYear",
+		"cardStartMonth", "cardStartYear", "cardIssueNumber"
+	));
+
+	private final TransactionTemplate template;
+	private final TreeMap<String, String> fields;
+	private final Basket basket;
+	private final boolean withoutCard;
+
+	GatewayRequest(TransactionTemplate template, SortedMap<String, String> fields) {
+		this(template, fields, null);
+	}
+
+	// The basket is copied, and must not share keys with the fields
+	GatewayRequest(TransactionTemplate template, SortedMap<String, String> fields, Basket basket) {
+		this.template = template;
+		this.fields = new TreeMap<>(fields);
+		this.basket = basket == null || basket.size() == 0 ? null : basket.copy();
+		this.withoutCard = false;
+	}
+
+	private GatewayRequest(GatewayRequest request) {
+		this.template = request.template;
+		this.fields = new TreeMap<>(request.fields);
+		this.fields.keySet().removeAll(CARD_FIELDS);
+		this.basket = request.basket;
+		this.withoutCard = true;
+	}
+
+	public String getTransactionUnique() {
+		return get("transactionUnique");
+	}
+
+	// The value that will be sent for this field, including fields from the template
+	public String get(String key) {
+		String value = fields.get(key);
+		if (value == null && template != null) {
+			value = template.get(key);
+		}
+		return value;
+	}
+
+	// A copy without the card details, for keeping once the request has been sent
+	GatewayRequest withoutCard() {
+		return withoutCard ? this : new GatewayRequest(this);
+	}
+
+	// Whether the other request would be sent with exactly the same fields, apart from card
+	// details if this is a copy without them
+	boolean sameAs(GatewayRequest other) {
+		if (other == this) {
+			return true;
+		}
+		if (template != other.template || !sameFields(other.fields)) {
+			return false;
+		}
+		return basket == null ? other.basket == null : other.basket != null && basket.sameItems(other.basket);
+	}
+
+	private boolean sameFields(TreeMap<String, String> others) {
+		if (!withoutCard) {
+			return fields.equals(others);
+		}
+		int count = 0;
+		for (Map.Entry<String, String> field : others.entrySet()) {
+			if (CARD_FIELDS.contains(field.getKey())) {
+				continue;
+			}
+			if (!field.getValue().equals(fields.get(field.getKey()))) {
+				return false;
+			}
+			count++;
+		}
+		return count == fields.size();
+	}
+
+	// Writes the fields in key order, without the signature
+	void encode(FormEncoder form) {
+		if (basket != null && template != null) {
+			template.encode(form, fields, basket);
+		} else if (template != null) {
+			template.encode(form, fields);
+		} else if (basket != null) {
+			add(form, fields.headMap(Basket.KEY_PREFIX));
+			basket.encode(form);
+			add(form, fields.tailMap(Basket.KEY_PREFIX));
+		} else {
+			add(form, fields);
+		}
+	}
+
+	private static void add(FormEncoder form, SortedMap<String, String> fields) {
+		for (Map.Entry<String, String> field : fields.entrySet()) {
+			form.add(field.getKey(), field.getValue());
+		}
+	}
+
+}
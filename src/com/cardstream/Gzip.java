@@ -0,0 +1,124 @@
+/**
+ * Decompresses gzip encoded replies
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+// The gzip trailer records the uncompressed size, so a complete reply is inflated straight into
+// an array of that size. Each thread reuses one Inflater instead of allocating its native
+// buffers per reply.
+final class Gzip {
+
+	// Replies claiming to inflate to more than this are rejected rather than allocated
+	static final int MAX_INFLATED_SIZE = 16 * 1024 * 1024;
+
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+	private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+	private Gzip() {
+	}
+
+	// Whether a Content-Encoding value names gzip
+	static boolean isGzip(String contentEncoding) {
+		return contentEncoding != null && contentEncoding.toLowerCase(Locale.ROOT).contains("gzip");
+	}
+
+	static TransportResponse inflate(int status, byte[] data, int offset, int length, Charset charset) throws ZipException {
+		int end = offset + length;
+		if (length < 18 || (data[offset] & 0xFF) != 0x1F || (data[offset + 1] & 0xFF) != 0x8B || data[offset + 2] != 8) {
+			throw new ZipException("Reply is not in gzip format");
+		}
+		int flags = data[offset + 3];
+		int position = offset + 10;
+		if ((flags & FEXTRA) != 0) {
+			position += 2 + ((data[position] & 0xFF) | (data[position + 1] & 0xFF) << 8);
+		}
+		if ((flags & FNAME) != 0) {
+			position = skipString(data, position, end);
+		}
+		if ((flags & FCOMMENT) != 0) {
+			position = skipString(data, position, end);
+		}
+		if ((flags & FHCRC) != 0) {
+			position += 2;
+		}
+		if (position > end - 8) {
+			throw new ZipException("Truncated gzip reply");
+		}
+
+		long crc = readInt(data, end - 8);
+		long size = readInt(data, end - 4);
+		if (size > MAX_INFLATED_SIZE) {
+			throw new ZipException("Gzip reply inflates to more than " + MAX_INFLATED_SIZE + " bytes");
+		}
+
+		// One spare byte lets inflate() reach the end of the stream without a second call
+		byte[] out = new byte[(int) size + 1];
+		int inflated = 0;
+		Inflater inflater = INFLATER.get();
+		inflater.reset();
+		inflater.setInput(data, position, end - 8 - position);
+		try {
+			while (!inflater.finished() && inflated < out.length) {
+				int read = inflater.inflate(out, inflated, out.length - inflated);
+				if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				inflated += read;
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException("Corrupt gzip reply: " + e.getMessage());
+		}
+		if (!inflater.finished() || inflated != size) {
+			throw new ZipException("Corrupt gzip reply: size does not match its trailer");
+		}
+
+		CRC32 check = new CRC32();
+		check.update(out, 0, inflated);
+		if (check.getValue() != crc) {
+			throw new ZipException("Corrupt gzip reply: CRC does not match its trailer");
+		}
+		return new TransportResponse(status, out, inflated, charset);
+	}
+
+	private static int skipString(byte[] data, int position, int end) throws ZipException {
+		while (position < end && data[position] != 0) {
+			position++;
+		}
+		if (position == end) {
+			throw new ZipException("Truncated gzip reply");
+		}
+		return position + 1;
+	}
+
+	private static long readInt(byte[] data, int position) {
+		return (data[position] & 0xFFL) | (data[position + 1] & 0xFFL) << 8 | (data[position + 2] & 0xFFL) << 16 | (data[position + 3] & 0xFFL) << 24;
+	}
+
+}
@@ -0,0 +1,276 @@
+/**
+ * Non-blocking transport built on java.net.http.HttpClient
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class HttpClientTransport implements Transport {
+
+	private static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(10);
+
+	private final HttpClient client;
+	private volatile Duration requestTimeout = Duration.ofSeconds(60);
+	private volatile int maxConcurrentStreams = 0;
+	private volatile boolean compression = true;
+	private final AtomicInteger active = new AtomicInteger();
+	private final ConcurrentLinkedQueue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+	private final LongAdder http2Responses = new LongAdder();
+	private final LongAdder http1Responses = new LongAdder();
+
+	public HttpClientTransport() {
+		this(HttpClient.Version.HTTP_1_1);
+	}
+
+	// The executor only runs response handling; socket I/O stays on the client's selector thread,
+	// so a handful of threads can carry thousands of in-flight authorisations
+	public HttpClientTransport(Executor executor) {
+		this(HttpClient.Version.HTTP_1_1, executor);
+	}
+
+	// With HTTP_2, concurrent requests are multiplexed as streams over a few connections. Servers
+	// that do not negotiate HTTP/2, through ALPN over TLS or an upgrade over plain HTTP, are
+	// spoken to over HTTP/1.1 instead; the response counters show which was used.
+	public HttpClientTransport(HttpClient.Version version) {
+		this(HttpClient.newBuilder().version(version).connectTimeout(DEFAULT_CONNECT_TIMEOUT).build());
+	}
+
+	public HttpClientTransport(HttpClient.Version version, Executor executor) {
+		this(HttpClient.newBuilder().version(version).connectTimeout(DEFAULT_CONNECT_TIMEOUT).executor(executor).build());
+	}
+
+	// The connect timeout of a client built elsewhere is left as configured
+	public HttpClientTransport(HttpClient client) {
+		this.client = client;
+	}
+
+	// Longest wait for the gateway's response headers once a request is sent; 0 waits forever
+	public void setRequestTimeout(long requestTimeoutMillis) {
+		if (requestTimeoutMillis < 0) {
+			throw new IllegalArgumentException("requestTimeoutMillis must not be negative");
+		}
+		this.requestTimeout = requestTimeoutMillis == 0 ? null : Duration.ofMillis(requestTimeoutMillis);
+	}
+
+	// Whether to ask for gzip compressed replies, which are inflated before being returned
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	public boolean getCompression() {
+		return this.compression;
+	}
+
+	// Requests beyond this many in flight wait, without holding a thread in postAsync(), until
+	// one completes. Keep it at or below the gateway's advertised SETTINGS_MAX_CONCURRENT_STREAMS
+	// times the connections wanted. 0, the default, does not limit.
+	public void setMaxConcurrentStreams(int maxConcurrentStreams) {
+		if (maxConcurrentStreams < 0) {
+			throw new IllegalArgumentException("maxConcurrentStreams must not be negative");
+		}
+		this.maxConcurrentStreams = maxConcurrentStreams;
+		dispatch();
+	}
+
+	public int getMaxConcurrentStreams() {
+		return this.maxConcurrentStreams;
+	}
+
+	// The version requested; see the response counters for what was negotiated
+	public HttpClient.Version getVersion() {
+		return client.version();
+	}
+
+	public int getActiveRequestCount() {
+		return active.get();
+	}
+
+	public int getWaitingRequestCount() {
+		return waiting.size();
+	}
+
+	public long getHttp2ResponseCount() {
+		return http2Responses.sum();
+	}
+
+	public long getHttp1ResponseCount() {
+		return http1Responses.sum();
+	}
+
+	// Used by Transaction.authoriseAsync() when no transport has been set
+	public static HttpClientTransport getDefault() {
+		return DefaultHolder.INSTANCE;
+	}
+
+	@Override
+	public TransportResponse post(URL url, byte[] body, int offset, int length) throws IOException {
+		HttpRequest request = request(url, body, offset, length);
+		CompletableFuture<Void> permit = new CompletableFuture<>();
+		whenPermitted(() -> {
+			// Not wanted if the caller was interrupted while waiting
+			if (!permit.complete(null)) {
+				release();
+			}
+		});
+
+		try {
+			permit.get();
+		} catch (InterruptedException | ExecutionException | CancellationException e) {
+			if (!permit.cancel(false)) {
+				release();
+			}
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for " + url);
+		}
+
+		try {
+			return toTransportResponse(client.send(request, HttpResponse.BodyHandlers.ofByteArray()));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for " + url);
+		} finally {
+			release();
+		}
+	}
+
+	@Override
+	public CompletableFuture<TransportResponse> postAsync(URL url, byte[] body, int offset, int length, Executor executor) {
+		HttpRequest request;
+		try {
+			request = request(url, body, offset, length);
+		} catch (IOException e) {
+			CompletableFuture<TransportResponse> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+
+		CompletableFuture<TransportResponse> result = new CompletableFuture<>();
+		whenPermitted(() -> {
+			try {
+				client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()).whenComplete((response, error) -> {
+					release();
+					if (error != null) {
+						result.completeExceptionally(error);
+						return;
+					}
+					try {
+						result.complete(toTransportResponse(response));
+					} catch (IOException e) {
+						result.completeExceptionally(e);
+					}
+				});
+			} catch (RuntimeException e) {
+				release();
+				result.completeExceptionally(e);
+			}
+		});
+		return result;
+	}
+
+	private void whenPermitted(Runnable task) {
+		waiting.add(task);
+		dispatch();
+	}
+
+	private void release() {
+		active.decrementAndGet();
+		dispatch();
+	}
+
+	// Starts waiting requests while there is room. Whoever frees a slot or queues a request
+	// runs this afterwards, so a request cannot be left waiting with a slot free.
+	private void dispatch() {
+		while (!waiting.isEmpty()) {
+			int count = active.get();
+			int limit = maxConcurrentStreams;
+			if (limit > 0 && count >= limit) {
+				return;
+			}
+			if (!active.compareAndSet(count, count + 1)) {
+				continue;
+			}
+			Runnable task = waiting.poll();
+			if (task == null) {
+				active.decrementAndGet();
+			} else {
+				task.run();
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		// HttpClient releases its connections once it is no longer referenced
+	}
+
+	private HttpRequest request(URL url, byte[] body, int offset, int length) throws IOException {
+		try {
+			HttpRequest.Builder builder = HttpRequest.newBuilder(url.toURI())
+				.header("Content-Type", "application/x-www-form-urlencoded")
+				.POST(HttpRequest.BodyPublishers.ofByteArray(body, offset, length));
+			if (compression) {
+				builder.header("Accept-Encoding", "gzip");
+			}
+			Duration timeout = requestTimeout;
+			if (timeout != null) {
+				builder.timeout(timeout);
+			}
+			return builder.build();
+		} catch (URISyntaxException | IllegalArgumentException e) {
+			throw new IOException("Invalid gateway URL: " + url, e);
+		}
+	}
+
+	private TransportResponse toTransportResponse(HttpResponse<byte[]> response) throws IOException {
+		if (response.version() == HttpClient.Version.HTTP_2) {
+			http2Responses.increment();
+		} else {
+			http1Responses.increment();
+		}
+		byte[] body = response.body();
+		HttpHeaders headers = response.headers();
+		Charset charset = TransportResponse.charsetOf(headers.firstValue("Content-Type").orElse(null));
+		if (body.length > 0 && Gzip.isGzip(headers.firstValue("Content-Encoding").orElse(null))) {
+			return Gzip.inflate(response.statusCode(), body, 0, body.length, charset);
+		}
+		return new TransportResponse(response.statusCode(), body, body.length, charset);
+	}
+
+	private static final class DefaultHolder {
+		static final HttpClientTransport INSTANCE = new HttpClientTransport();
+	}
+
+}
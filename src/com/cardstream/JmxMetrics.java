@@ -0,0 +1,145 @@
+/**
+ * Publishes GatewayMetrics and connection pool gauges as a platform MBean
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// JMX ships with the JDK and is read by JConsole, VisualVM and the common JMX exporters, so
+// this needs no extra dependencies. Values are read from GatewayMetrics when polled; nothing
+// is added to the request path.
+public final class JmxMetrics implements GatewayMetricsMXBean {
+
+	private final GatewayMetrics metrics;
+	private final PooledTransport transport;
+	private ObjectName name;
+
+	// transport may be null when the pool gauges are not wanted
+	public JmxMetrics(GatewayMetrics metrics, PooledTransport transport) {
+		this.metrics = metrics;
+		this.transport = transport;
+	}
+
+	// Registers as com.cardstream:type=GatewayMetrics,name=<name>
+	public synchronized ObjectName register(String name) throws JMException {
+		if (this.name != null) {
+			throw new IllegalStateException("Already registered as " + this.name);
+		}
+		ObjectName objectName = new ObjectName("com.cardstream", new Hashtable<>(Map.of("type", "GatewayMetrics", "name", ObjectName.quote(name))));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		this.name = objectName;
+		return objectName;
+	}
+
+	public synchronized void unregister() throws JMException {
+		if (name != null) {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			name = null;
+		}
+	}
+
+	@Override
+	public long getCallCount() {
+		return metrics.getCallLatency().getCount();
+	}
+
+	@Override
+	public long getFailureCount() {
+		return metrics.getFailureCount();
+	}
+
+	@Override
+	public long getRetryCount() {
+		return metrics.getRetryCount();
+	}
+
+	@Override
+	public double getMeanNanos() {
+		return metrics.getCallLatency().getMean();
+	}
+
+	@Override
+	public long getP50Nanos() {
+		return metrics.getCallLatency().getPercentile(50);
+	}
+
+	@Override
+	public long getP99Nanos() {
+		return metrics.getCallLatency().getPercentile(99);
+	}
+
+	@Override
+	public long getMaxNanos() {
+		return metrics.getCallLatency().getMax();
+	}
+
+	@Override
+	public Map<String, Long> getPhaseP50Nanos() {
+		return phasePercentiles(50);
+	}
+
+	@Override
+	public Map<String, Long> getPhaseP99Nanos() {
+		return phasePercentiles(99);
+	}
+
+	@Override
+	public Map<String, Long> getResponseCounts() {
+		Map<String, Long> counts = new LinkedHashMap<>();
+		for (Map.Entry<Integer, Long> code : metrics.getResponseCounts().entrySet()) {
+			counts.put(code.getKey().toString(), code.getValue());
+		}
+		return counts;
+	}
+
+	@Override
+	public int getIdleConnections() {
+		return transport == null ? 0 : transport.getIdleConnectionCount();
+	}
+
+	@Override
+	public int getLeasedConnections() {
+		return transport == null ? 0 : transport.getLeasedConnectionCount();
+	}
+
+	@Override
+	public void reset() {
+		metrics.reset();
+	}
+
+	private Map<String, Long> phasePercentiles(double percentile) {
+		Map<String, Long> values = new LinkedHashMap<>();
+		for (MetricsListener.Phase phase : MetricsListener.Phase.values()) {
+			LatencyHistogram histogram = metrics.getLatency(phase);
+			if (histogram.getCount() > 0) {
+				values.put(phase.name(), histogram.getPercentile(percentile));
+			}
+		}
+		return values;
+	}
+
+}
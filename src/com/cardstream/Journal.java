@@ -0,0 +1,452 @@
+/**
+ * Write-ahead journal of authorisations whose outcome is not yet known
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+// Each request's transactionUnique is made durable before it is sent, and its responseCode and
+// xref are appended once the reply arrives. After a crash, getInDoubt() lists what was sent
+// without a recorded reply, so it can be checked against the gateway and then resolve()d.
+//
+// Records are appended to memory-mapped segment files. Writers waiting for durability are
+// batched: a single flusher thread forces everything appended so far, then wakes every writer
+// it covered. When a segment fills, the transactions still in doubt are copied into the next
+// one and the older segments are deleted, so the journal stays about one segment in size.
+public class Journal implements Closeable {
+
+	private static final byte SEND = 1;
+	private static final byte RESULT = 2;
+	private static final byte RESOLVED = 3;
+	private static final int HEADER = 8;
+	private static final String PREFIX = "journal-";
+	private static final String SUFFIX = ".log";
+
+	private final Path directory;
+	private final int segmentSize;
+	private final ConcurrentHashMap<String, Entry> pending = new ConcurrentHashMap<>();
+	private final List<Entry> recovered;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition flushNeeded = lock.newCondition();
+	private final Condition flushed = lock.newCondition();
+	private final Thread flusher;
+
+	// Guarded by lock
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private long segment;
+	private long written;
+	private long durable;
+	private IOException flushError;
+	private boolean closed;
+
+	public Journal(Path directory) throws IOException {
+		this(directory, 64 * 1024 * 1024);
+	}
+
+	public Journal(Path directory, int segmentSize) throws IOException {
+		if (segmentSize < 4096) {
+			throw new IllegalArgumentException("segmentSize must be at least 4096 bytes");
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		Files.createDirectories(directory);
+
+		List<Path> segments = segments();
+		for (Path path : segments) {
+			replay(path);
+		}
+		List<Entry> inDoubt = new ArrayList<>(pending.values());
+		inDoubt.sort(Comparator.comparingLong(Entry::getSentAt));
+		this.recovered = Collections.unmodifiableList(inDoubt);
+
+		lock.lock();
+		try {
+			segment = segments.isEmpty() ? 0 : number(segments.get(segments.size() - 1));
+			rollover();
+		} finally {
+			lock.unlock();
+		}
+
+		flusher = new Thread(this::flushLoop, "cardstream-journal");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	// Transactions sent before the journal was opened that never had a reply recorded
+	public List<Entry> getInDoubt() {
+		List<Entry> inDoubt = new ArrayList<>();
+		for (Entry entry : recovered) {
+			if (pending.containsKey(entry.transactionUnique)) {
+				inDoubt.add(entry);
+			}
+		}
+		return inDoubt;
+	}
+
+	// Every transaction without a recorded reply, including any being sent right now
+	public List<Entry> getPending() {
+		List<Entry> entries = new ArrayList<>(pending.values());
+		entries.sort(Comparator.comparingLong(Entry::getSentAt));
+		return entries;
+	}
+
+	// Returns once the record is on disk; the request must not be sent before then
+	public void recordSend(GatewayRequest request) throws IOException {
+		recordSends(Collections.singletonList(request));
+	}
+
+	// Returns once every record is on disk, with a single wait for the whole batch
+	public void recordSends(Collection<GatewayRequest> requests) throws IOException {
+		long position = 0;
+		for (GatewayRequest request : requests) {
+			Entry entry = new Entry(request.getTransactionUnique(), request.get("merchantID"), request.get("amount"), System.currentTimeMillis());
+			if (entry.transactionUnique == null) {
+				throw new IllegalArgumentException("Request has no transactionUnique");
+			}
+			pending.put(entry.transactionUnique, entry);
+			position = append(record(SEND, entry.sentAt, entry.transactionUnique, entry.merchantID, entry.amount, 0));
+		}
+		awaitDurable(position);
+	}
+
+	// Not waited for: if this record is lost the transaction is only reported as in doubt
+	public void recordResult(String transactionUnique, AuthResponse response) throws IOException {
+		append(record(RESULT, System.currentTimeMillis(), transactionUnique, response.getXref(), null, response.getResponseCode()));
+		pending.remove(transactionUnique);
+	}
+
+	// Marks an in-doubt transaction as reconciled
+	public void resolve(String transactionUnique) throws IOException {
+		awaitDurable(append(record(RESOLVED, System.currentTimeMillis(), transactionUnique, null, null, 0)));
+		pending.remove(transactionUnique);
+	}
+
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			flushNeeded.signal();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		lock.lock();
+		try {
+			buffer.force();
+			channel.close();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private long append(byte[] record) throws IOException {
+		if (record.length > segmentSize / 2) {
+			throw new IllegalArgumentException("Journal record too large");
+		}
+		lock.lock();
+		try {
+			if (closed) {
+				throw new IOException("Journal has been closed");
+			}
+			if (buffer.remaining() < record.length) {
+				rollover();
+			}
+			buffer.put(record);
+			written += record.length;
+			return written;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void awaitDurable(long position) throws IOException {
+		lock.lock();
+		try {
+			flushNeeded.signal();
+			while (durable < position) {
+				if (flushError != null) {
+					throw new IOException("Journal flush failed", flushError);
+				}
+				if (closed && flusher.getState() == Thread.State.TERMINATED) {
+					throw new IOException("Journal has been closed");
+				}
+				flushed.await();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for the journal");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void flushLoop() {
+		while (true) {
+			MappedByteBuffer target;
+			long position;
+			lock.lock();
+			try {
+				while (written == durable && !closed) {
+					flushNeeded.awaitUninterruptibly();
+				}
+				if (written == durable) {
+					flushed.signalAll();
+					return;
+				}
+				target = buffer;
+				position = written;
+			} finally {
+				lock.unlock();
+			}
+
+			// Everything appended while this runs is covered by the next pass
+			IOException error = null;
+			try {
+				target.force();
+			} catch (RuntimeException e) {
+				// MappedByteBuffer.force() reports I/O errors as UncheckedIOException
+				error = new IOException(e.getMessage(), e);
+			}
+
+			lock.lock();
+			try {
+				if (error != null) {
+					flushError = error;
+				} else if (position > durable) {
+					durable = position;
+				}
+				flushed.signalAll();
+				if (error != null) {
+					return;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	// Called with lock held. Starts the next segment with the pending transactions copied into
+	// it and made durable, then deletes the older segments. A segment is made larger than
+	// segmentSize if that is what it takes to hold them. If this fails nothing has changed,
+	// and the current segment stays in use.
+	private void rollover() throws IOException {
+		List<byte[]> records = new ArrayList<>();
+		long carried = 0;
+		for (Entry entry : pending.values()) {
+			byte[] record = record(SEND, entry.sentAt, entry.transactionUnique, entry.merchantID, entry.amount, 0);
+			records.add(record);
+			carried += record.length;
+		}
+		// Leaves room for at least one record of the largest size append() accepts
+		long size = Math.max(segmentSize, carried + segmentSize / 2);
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Too many transactions in doubt to carry into a new journal segment");
+		}
+
+		if (buffer != null) {
+			buffer.force();
+		}
+		Path path = directory.resolve(PREFIX + (segment + 1) + SUFFIX);
+		FileChannel next = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		MappedByteBuffer nextBuffer;
+		try {
+			nextBuffer = next.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			for (byte[] record : records) {
+				nextBuffer.put(record);
+			}
+			nextBuffer.force();
+		} catch (IOException | RuntimeException e) {
+			next.close();
+			Files.deleteIfExists(path);
+			throw e;
+		}
+
+		if (channel != null) {
+			channel.close();
+		}
+		channel = next;
+		buffer = nextBuffer;
+		segment++;
+		written += carried;
+		durable = written;
+
+		for (Path old : segments()) {
+			if (number(old) < segment) {
+				try {
+					Files.deleteIfExists(old);
+				} catch (IOException e) {
+					// Everything in it has been carried forward; the next rollover tries again
+				}
+			}
+		}
+	}
+
+	// Reads records until the zero-filled end of the segment or the first torn record
+	private void replay(Path path) throws IOException {
+		ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path));
+		CRC32 crc = new CRC32();
+		while (data.remaining() >= HEADER) {
+			int length = data.getInt();
+			int checksum = data.getInt();
+			if (length <= 0 || length > data.remaining()) {
+				break;
+			}
+			crc.reset();
+			crc.update(data.array(), data.position(), length);
+			if ((int) crc.getValue() != checksum) {
+				break;
+			}
+
+			int end = data.position() + length;
+			byte type = data.get();
+			long time = data.getLong();
+			String transactionUnique = readString(data);
+			if (type == SEND) {
+				pending.put(transactionUnique, new Entry(transactionUnique, readString(data), readString(data), time));
+			} else {
+				pending.remove(transactionUnique);
+			}
+			data.position(end);
+		}
+	}
+
+	private static byte[] record(byte type, long time, String transactionUnique, String first, String second, int code) {
+		byte[] unique = bytes(transactionUnique);
+		byte[] a = bytes(first);
+		byte[] b = bytes(second);
+		int length = 1 + 8 + 2 + unique.length + 2 + a.length + 2 + b.length + 4;
+
+		ByteBuffer record = ByteBuffer.allocate(HEADER + length);
+		record.putInt(length);
+		record.putInt(0);
+		record.put(type);
+		record.putLong(time);
+		putString(record, unique);
+		putString(record, a);
+		putString(record, b);
+		record.putInt(code);
+
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), HEADER, length);
+		record.putInt(4, (int) crc.getValue());
+		return record.array();
+	}
+
+	private static byte[] bytes(String value) {
+		byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > 0xFFFF) {
+			throw new IllegalArgumentException("Journal field too long");
+		}
+		return bytes;
+	}
+
+	private static void putString(ByteBuffer buffer, byte[] value) {
+		buffer.putShort((short) value.length);
+		buffer.put(value);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getShort() & 0xFFFF;
+		String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + length);
+		return value;
+	}
+
+	private List<Path> segments() throws IOException {
+		List<Path> segments = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+			for (Path path : stream) {
+				if (number(path) > 0) {
+					segments.add(path);
+				}
+			}
+		}
+		segments.sort(Comparator.comparingLong(Journal::number));
+		return segments;
+	}
+
+	private static long number(Path path) {
+		String name = path.getFileName().toString();
+		try {
+			return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	public static final class Entry {
+
+		private final String transactionUnique;
+		private final String merchantID;
+		private final String amount;
+		private final long sentAt;
+
+		Entry(String transactionUnique, String merchantID, String amount, long sentAt) {
+			this.transactionUnique = transactionUnique;
+			this.merchantID = merchantID;
+			this.amount = amount;
+			this.sentAt = sentAt;
+		}
+
+		public String getTransactionUnique() {
+			return this.transactionUnique;
+		}
+
+		public String getMerchantID() {
+			return this.merchantID;
+		}
+
+		public String getAmount() {
+			return this.amount;
+		}
+
+		// Milliseconds since the epoch
+		public long getSentAt() {
+			return this.sentAt;
+		}
+
+		@Override
+		public String toString() {
+			return "Journal.Entry{" + transactionUnique + ", merchantID=" + merchantID + ", amount=" + amount + ", sentAt=" + sentAt + "}";
+		}
+	}
+
+}
@@ -0,0 +1,34 @@
+/**
+ * Thrown when the adaptive limiter turns a request away
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.io.IOException;
+
+// Thrown before anything is sent, so the request can safely be tried again later
+public class LimitExceededException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public LimitExceededException(String message) {
+		super(message);
+	}
+
+}
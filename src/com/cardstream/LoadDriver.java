@@ -0,0 +1,170 @@
+/**
+ * Closed-loop load generator for sizing thread and connection pools
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Each thread authorises a fresh transaction from the factory as soon as the previous one
+// completes, for the given duration, and the latency of every call is recorded
+public class LoadDriver {
+
+	private final Callable<Transaction> factory;
+
+	public LoadDriver(Callable<Transaction> factory) {
+		this.factory = factory;
+	}
+
+	public Report run(int threads, long durationMillis) throws InterruptedException {
+		Report report = new Report();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+		CountDownLatch done = new CountDownLatch(threads);
+		long start = System.nanoTime();
+
+		for (int i = 0; i < threads; i++) {
+			Thread thread = new Thread(() -> {
+				try {
+					while (System.nanoTime() < deadline && !Thread.currentThread().isInterrupted()) {
+						drive(report);
+					}
+				} finally {
+					done.countDown();
+				}
+			}, "cardstream-load-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		done.await();
+		report.elapsedNanos = System.nanoTime() - start;
+		return report;
+	}
+
+	private void drive(Report report) {
+		Transaction transaction;
+		try {
+			transaction = factory.call();
+		} catch (Exception e) {
+			report.errors.increment();
+			return;
+		}
+
+		long start = System.nanoTime();
+		try {
+			boolean sent = transaction.authorise();
+			report.latency.record(System.nanoTime() - start);
+			if (sent) {
+				report.responseCodes.computeIfAbsent(transaction.getAuthResponse().getResponseCode(), k -> new LongAdder()).increment();
+			} else {
+				report.failures.increment();
+			}
+		} catch (Exception e) {
+			report.latency.record(System.nanoTime() - start);
+			report.errors.increment();
+		}
+	}
+
+	public static final class Report {
+
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final ConcurrentSkipListMap<Integer, LongAdder> responseCodes = new ConcurrentSkipListMap<>();
+		private final LongAdder failures = new LongAdder();
+		private final LongAdder errors = new LongAdder();
+		private volatile long elapsedNanos;
+
+		public LatencyHistogram getLatency() {
+			return this.latency;
+		}
+
+		// Completed authorisations per second, whatever their response code
+		public double getThroughput() {
+			return elapsedNanos == 0 ? 0 : latency.getCount() * 1e9 / elapsedNanos;
+		}
+
+		public long getResponseCount(int responseCode) {
+			LongAdder count = responseCodes.get(responseCode);
+			return count == null ? 0 : count.sum();
+		}
+
+		// authorise() returned false because the request could not be sent
+		public long getFailureCount() {
+			return failures.sum();
+		}
+
+		// authorise() or the transaction factory threw
+		public long getErrorCount() {
+			return errors.sum();
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder out = new StringBuilder();
+			out.append(String.format("throughput=%.1f/s failures=%d errors=%d%n", getThroughput(), getFailureCount(), getErrorCount()));
+			out.append("latency ").append(latency).append(String.format("%n"));
+			out.append("responseCodes");
+			for (Map.Entry<Integer, LongAdder> code : responseCodes.entrySet()) {
+				out.append(' ').append(code.getKey()).append('=').append(code.getValue().sum());
+			}
+			return out.toString();
+		}
+	}
+
+	// Usage: java -Dsun.net.httpserver.nodelay=true com.cardstream.LoadDriver [threads] [seconds] [gatewayLatencyMillis]
+	// Runs against an in-process StubGateway and prints the report
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		long gatewayLatency = args.length > 2 ? Long.parseLong(args[2]) : 0;
+
+		StubGateway gateway = new StubGateway("Circle4Take40Idea");
+		gateway.setLatency(gatewayLatency, gatewayLatency);
+		gateway.setResponseCodes(0, 0, 0, 0, 0, 0, 0, 2, 5, 30);
+		gateway.start();
+
+		try {
+			TransactionTemplate template = new TransactionTemplate(gateway.getURL(), "100001", "Circle4Take40Idea")
+				.withType(Transaction.TYPE.ECOM)
+				.withAction(Transaction.ACTION.SALE)
+				.withCountryCode("GB")
+				.withCurrencyCode(826);
+
+			// A year ahead, so the card never fails validation as expired
+			int expiryYear = (Calendar.getInstance().get(Calendar.YEAR) + 1) % 100;
+			LoadDriver driver = new LoadDriver(() -> {
+				Transaction transaction = template.newTransaction();
+				transaction.setAmount(1000);
+				transaction.setCardNumber("4929421234600821");
+				transaction.setCardCVV("356");
+				transaction.setCardExpiryMonth(12);
+				transaction.setCardExpiryYear(expiryYear);
+				transaction.setCustomerName("John Smith");
+				return transaction;
+			});
+
+			System.out.println(driver.run(threads, TimeUnit.SECONDS.toMillis(seconds)));
+			System.out.println("signatureFailures=" + gateway.getSignatureFailureCount());
+		} finally {
+			gateway.stop();
+		}
+	}
+
+}
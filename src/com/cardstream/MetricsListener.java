@@ -0,0 +1,64 @@
+/**
+ * Receives timings and outcomes from the request path
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.io.IOException;
+
+// Called on the thread making the request, so implementations must be thread-safe, cheap and
+// should not allocate. GatewayMetrics is a ready-made implementation.
+public interface MetricsListener {
+
+	enum Phase {
+		// Encoding the form fields
+		BUILD,
+		// Signing the encoded form
+		SIGN,
+		// Waiting for a free pooled connection
+		ACQUIRE,
+		// Opening a new connection, including the TLS handshake
+		CONNECT,
+		// Writing the request
+		WRITE,
+		// From the end of the request until the response headers have been read
+		WAIT,
+		// Reading the response body
+		READ,
+		// Parsing the reply
+		PARSE
+	}
+
+	// Time spent in one phase of an attempt, in nanoseconds
+	default void onPhase(Phase phase, long nanos) {
+	}
+
+	// A reply was received and parsed; nanos covers the whole call, including any retries
+	default void onResponse(int responseCode, long nanos) {
+	}
+
+	// The call failed after its last attempt
+	default void onFailure(IOException error, long nanos) {
+	}
+
+	// The given attempt failed and will be retried
+	default void onRetry(IOException error, int attempt) {
+	}
+
+}
@@ -0,0 +1,799 @@
+/**
+ * HTTP/1.1 transport with a bounded pool of keep-alive connections per host
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.*;
+
+public class PooledTransport implements Transport {
+
+	private static final PooledTransport DEFAULT = new PooledTransport();
+
+	private final int maxConnectionsPerHost;
+	private final long idleTimeoutNanos;
+	private final ConcurrentHashMap<String, HostPool> pools = new ConcurrentHashMap<>();
+	private volatile SSLSocketFactory sslSocketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+	private volatile int connectTimeoutMillis = 10000;
+	private volatile int readTimeoutMillis = 60000;
+	private volatile MetricsListener metricsListener;
+	private volatile boolean compression = true;
+	private volatile boolean closed = false;
+
+	public PooledTransport() {
+		this(20, 30000);
+	}
+
+	public PooledTransport(int maxConnectionsPerHost, long idleTimeoutMillis) {
+		if (maxConnectionsPerHost < 1) {
+			throw new IllegalArgumentException("maxConnectionsPerHost must be at least 1");
+		}
+		if (idleTimeoutMillis < 0) {
+			throw new IllegalArgumentException("idleTimeoutMillis must not be negative");
+		}
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+	}
+
+	// Shared by every Transaction that has not been given its own transport
+	public static PooledTransport getDefault() {
+		return DEFAULT;
+	}
+
+	public void setSSLSocketFactory(SSLSocketFactory sslSocketFactory) {
+		this.sslSocketFactory = sslSocketFactory;
+	}
+
+	public int getMaxConnectionsPerHost() {
+		return this.maxConnectionsPerHost;
+	}
+
+	// Bounds both the wait for a free connection and the TCP and TLS connect; 0 waits forever
+	public void setConnectTimeout(int connectTimeoutMillis) {
+		if (connectTimeoutMillis < 0) {
+			throw new IllegalArgumentException("connectTimeoutMillis must not be negative");
+		}
+		this.connectTimeoutMillis = connectTimeoutMillis;
+	}
+
+	public int getConnectTimeout() {
+		return this.connectTimeoutMillis;
+	}
+
+	// Longest wait for each read from the gateway; 0 waits forever
+	public void setReadTimeout(int readTimeoutMillis) {
+		if (readTimeoutMillis < 0) {
+			throw new IllegalArgumentException("readTimeoutMillis must not be negative");
+		}
+		this.readTimeoutMillis = readTimeoutMillis;
+	}
+
+	public int getReadTimeout() {
+		return this.readTimeoutMillis;
+	}
+
+	// Whether to ask for gzip compressed replies, which are inflated before being returned
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	public boolean getCompression() {
+		return this.compression;
+	}
+
+	// Receives ACQUIRE, CONNECT, WRITE, WAIT and READ timings for every request; null disables
+	public void setMetricsListener(MetricsListener metricsListener) {
+		this.metricsListener = metricsListener;
+	}
+
+	public MetricsListener getMetricsListener() {
+		return this.metricsListener;
+	}
+
+	@Override
+	public TransportResponse post(URL url, byte[] body, int offset, int length) throws IOException {
+		if (closed) {
+			throw new IOException("Transport has been closed");
+		}
+
+		MetricsListener metrics = metricsListener;
+		long start = metrics == null ? 0 : System.nanoTime();
+		HostPool pool = pool(url);
+		try {
+			int timeout = connectTimeoutMillis;
+			if (timeout == 0) {
+				pool.permits.acquire();
+			} else if (!pool.permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+				throw new SocketTimeoutException("Timed out waiting for a connection to " + pool.key);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for a connection to " + pool.key);
+		}
+		if (metrics != null) {
+			metrics.onPhase(MetricsListener.Phase.ACQUIRE, System.nanoTime() - start);
+		}
+
+		try {
+			Connection conn = pool.poll();
+			while (true) {
+				boolean reused = conn != null;
+				if (!reused) {
+					start = metrics == null ? 0 : System.nanoTime();
+					conn = open(pool);
+					if (metrics != null) {
+						metrics.onPhase(MetricsListener.Phase.CONNECT, System.nanoTime() - start);
+					}
+				}
+
+				try {
+					TransportResponse response = exchange(pool, conn, url, body, offset, length, metrics);
+					if (conn.keepAlive && !closed) {
+						pool.offer(conn);
+					} else {
+						conn.close();
+					}
+					return response;
+				} catch (IOException e) {
+					conn.close();
+					// A pooled connection the server has already dropped fails before any
+					// response arrives; resend once on a fresh connection, as HttpURLConnection does
+					if (!reused || conn.responseStarted || e instanceof SocketTimeoutException) {
+						throw e;
+					}
+					conn = null;
+				}
+			}
+		} finally {
+			pool.permits.release();
+		}
+	}
+
+	// Opens connections to the URL's host, completing the TLS handshake, until this many are
+	// idle in the pool, and returns how many were opened. Connections in use count against
+	// maxConnectionsPerHost, so fewer may be opened.
+	public int preconnect(URL url, int connections) throws IOException {
+		if (closed) {
+			throw new IOException("Transport has been closed");
+		}
+		HostPool pool = pool(url);
+		int opened = 0;
+		for (int i = 0; i < connections && pool.idleCount() < connections; i++) {
+			if (!pool.permits.tryAcquire()) {
+				break;
+			}
+			try {
+				pool.offer(open(pool));
+				opened++;
+			} finally {
+				pool.permits.release();
+			}
+		}
+		return opened;
+	}
+
+	// Close connections that have sat idle for longer than the idle timeout. Each request also
+	// closes those of its own host, so this is only needed for hosts no longer sent to.
+	public void evictIdleConnections() {
+		for (HostPool pool : pools.values()) {
+			pool.evictIdle(System.nanoTime());
+		}
+	}
+
+	public int getIdleConnectionCount() {
+		int count = 0;
+		for (HostPool pool : pools.values()) {
+			count += pool.idleCount();
+		}
+		return count;
+	}
+
+	public int getLeasedConnectionCount() {
+		int count = 0;
+		for (HostPool pool : pools.values()) {
+			count += maxConnectionsPerHost - pool.permits.availablePermits();
+		}
+		return count;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		for (HostPool pool : pools.values()) {
+			pool.closeIdle();
+		}
+	}
+
+	private HostPool pool(URL url) throws IOException {
+		String protocol = url.getProtocol();
+		boolean secure;
+		if ("https".equalsIgnoreCase(protocol)) {
+			secure = true;
+		} else if ("http".equalsIgnoreCase(protocol)) {
+			secure = false;
+		} else {
+			throw new MalformedURLException("Unsupported protocol: " + protocol);
+		}
+
+		// Connections are shared by every path on the host, so the key leaves it out
+		int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+		String key = protocol + "://" + url.getHost() + ":" + port;
+
+		HostPool pool = pools.get(key);
+		if (pool == null) {
+			pool = pools.computeIfAbsent(key, k -> new HostPool(k, secure, url.getHost(), port, url.getPort() == -1));
+		}
+		return pool;
+	}
+
+	// Goes through the proxy HttpURLConnection would use, from http.proxyHost, https.proxyHost,
+	// socksProxyHost or an installed ProxySelector. HTTPS is tunnelled through HTTP proxies with
+	// CONNECT; proxies that ask for authentication are not supported.
+	private Connection open(HostPool pool) throws IOException {
+		Proxy proxy = selectProxy(pool);
+		boolean httpProxy = proxy.type() == Proxy.Type.HTTP;
+		Socket socket = proxy.type() == Proxy.Type.SOCKS ? new Socket(proxy) : new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			int timeout = connectTimeoutMillis;
+			if (httpProxy) {
+				InetSocketAddress address = (InetSocketAddress) proxy.address();
+				socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), timeout);
+			} else if (proxy.type() == Proxy.Type.SOCKS) {
+				// Leaves the proxy to resolve the gateway's name, as a browser would
+				socket.connect(InetSocketAddress.createUnresolved(pool.host, pool.port), timeout);
+			} else {
+				socket.connect(new InetSocketAddress(pool.host, pool.port), timeout);
+			}
+			socket.setSoTimeout(timeout);
+
+			if (httpProxy && pool.secure) {
+				tunnel(socket, pool);
+			}
+			if (pool.secure) {
+				SSLSocket ssl = (SSLSocket) sslSocketFactory.createSocket(socket, pool.host, pool.port, true);
+				SSLParameters params = ssl.getSSLParameters();
+				params.setEndpointIdentificationAlgorithm("HTTPS");
+				ssl.setSSLParameters(params);
+				ssl.startHandshake();
+				socket = ssl;
+			}
+
+			Connection conn = new Connection(socket);
+			conn.absoluteForm = httpProxy && !pool.secure;
+			return conn;
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	private static Proxy selectProxy(HostPool pool) throws IOException {
+		ProxySelector selector = ProxySelector.getDefault();
+		if (selector == null) {
+			return Proxy.NO_PROXY;
+		}
+		List<Proxy> proxies;
+		try {
+			proxies = selector.select(new URI(pool.secure ? "https" : "http", null, pool.host, pool.port, "/", null, null));
+		} catch (URISyntaxException e) {
+			throw new MalformedURLException("Invalid host: " + pool.host);
+		}
+		return proxies == null || proxies.isEmpty() ? Proxy.NO_PROXY : proxies.get(0);
+	}
+
+	// Asks an HTTP proxy for a raw connection to the gateway. The reply is read a byte at a
+	// time, as nothing after it may be taken from the socket before the TLS handshake.
+	private static void tunnel(Socket socket, HostPool pool) throws IOException {
+		String authority = pool.host + ":" + pool.port;
+		OutputStream out = socket.getOutputStream();
+		out.write(("CONNECT " + authority + " HTTP/1.1\r\nHost: " + authority + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+		out.flush();
+
+		InputStream in = socket.getInputStream();
+		String status = readProxyLine(in);
+		if (status.length() < 12 || !status.startsWith("HTTP/1.")) {
+			throw new ProtocolException("Invalid reply from proxy to CONNECT " + authority);
+		}
+		if (!status.startsWith("200", 9)) {
+			throw new IOException("Proxy refused to tunnel to " + authority + ": " + status);
+		}
+		while (readProxyLine(in).length() > 0) {
+		}
+	}
+
+	private static String readProxyLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c < 0) {
+				throw new EOFException("Proxy closed the connection during CONNECT");
+			}
+			if (line.length() >= 8192) {
+				throw new ProtocolException("Proxy reply line too long");
+			}
+			line.append((char) c);
+		}
+		int len = line.length();
+		return len > 0 && line.charAt(len - 1) == '\r' ? line.substring(0, len - 1) : line.toString();
+	}
+
+	private TransportResponse exchange(HostPool pool, Connection conn, URL url, byte[] body, int offset, int length, MetricsListener metrics) throws IOException {
+		int timeout = readTimeoutMillis;
+		if (conn.readTimeout != timeout) {
+			conn.socket.setSoTimeout(timeout);
+			conn.readTimeout = timeout;
+		}
+
+		long start = metrics == null ? 0 : System.nanoTime();
+		OutputStream out = conn.out;
+		out.write(POST);
+		if (conn.absoluteForm) {
+			out.write(pool.origin);
+		}
+		writePath(out, url.getFile());
+		out.write(HTTP_VERSION);
+		out.write(pool.requestHead);
+		if (compression) {
+			out.write(ACCEPT_GZIP);
+		}
+		out.write(CONTENT_LENGTH);
+		writeDecimal(out, length);
+		out.write(CRLF);
+		out.write(CRLF);
+		out.write(body, offset, length);
+		out.flush();
+		if (metrics != null) {
+			long now = System.nanoTime();
+			metrics.onPhase(MetricsListener.Phase.WRITE, now - start);
+			start = now;
+		}
+
+		int status;
+		do {
+			status = readHead(conn);
+		} while (status >= 100 && status < 200);
+		if (metrics != null) {
+			long now = System.nanoTime();
+			metrics.onPhase(MetricsListener.Phase.WAIT, now - start);
+			start = now;
+		}
+
+		TransportResponse response = readBody(conn, status);
+		if (metrics != null) {
+			metrics.onPhase(MetricsListener.Phase.READ, System.nanoTime() - start);
+		}
+		return response;
+	}
+
+	private TransportResponse readBody(Connection conn, int status) throws IOException {
+		if (status == 204 || status == 304) {
+			return new TransportResponse(status, new byte[0], 0, conn.charset);
+		}
+
+		// Compressed bodies only live until they are inflated, so they go in the connection's
+		// reusable buffer; plain bodies are handed to the caller and need their own array
+		boolean gzip = conn.gzip;
+		byte[] data;
+		if (conn.chunked) {
+			data = readChunked(conn, gzip ? conn.scratch(0) : new byte[1024]);
+		} else if (conn.contentLength >= 0) {
+			int length = (int) conn.contentLength;
+			data = gzip ? conn.scratch(length) : new byte[length];
+			readFully(conn.in, data, 0, length);
+			conn.bodyLength = length;
+		} else {
+			// No framing, the body runs until the server closes the connection
+			conn.keepAlive = false;
+			data = readToEnd(conn, gzip ? conn.scratch(0) : new byte[1024]);
+		}
+
+		if (gzip) {
+			conn.release(data);
+			return Gzip.inflate(status, data, 0, conn.bodyLength, conn.charset);
+		}
+		return new TransportResponse(status, data, conn.bodyLength, conn.charset);
+	}
+
+	private int readHead(Connection conn) throws IOException {
+		int len = conn.readLine();
+		if (len < 0) {
+			throw new SocketException("Connection closed before a response was received");
+		}
+		conn.responseStarted = true;
+
+		byte[] line = conn.line;
+		if (len < 12 || !startsWith(line, HTTP_VERSION_PREFIX) || line[8] != ' ') {
+			throw new ProtocolException("Invalid HTTP status line");
+		}
+		int status = (int) parseDecimal(line, 9, 12);
+		if (status < 0) {
+			throw new ProtocolException("Invalid HTTP status code");
+		}
+
+		conn.keepAlive = line[7] != '0';
+		conn.chunked = false;
+		conn.gzip = false;
+		conn.charset = null;
+		conn.contentLength = -1;
+
+		while ((len = conn.readLine()) > 0) {
+			line = conn.line;
+			int colon = indexOf(line, len, (byte) ':');
+			if (colon < 0) {
+				continue;
+			}
+			int start = colon + 1;
+			while (start < len && (line[start] == ' ' || line[start] == '\t')) {
+				start++;
+			}
+			int end = len;
+			while (end > start && (line[end - 1] == ' ' || line[end - 1] == '\t')) {
+				end--;
+			}
+
+			if (headerIs(line, colon, "content-length")) {
+				conn.contentLength = parseDecimal(line, start, end);
+				if (conn.contentLength < 0 || conn.contentLength > Integer.MAX_VALUE) {
+					throw new ProtocolException("Invalid Content-Length");
+				}
+			} else if (headerIs(line, colon, "content-encoding")) {
+				conn.gzip = containsIgnoreCase(line, start, end, "gzip");
+			} else if (headerIs(line, colon, "content-type")) {
+				if (containsIgnoreCase(line, start, end, "charset")) {
+					conn.charset = TransportResponse.charsetOf(new String(line, start, end - start, StandardCharsets.ISO_8859_1));
+				}
+			} else if (headerIs(line, colon, "transfer-encoding")) {
+				conn.chunked = containsIgnoreCase(line, start, end, "chunked");
+			} else if (headerIs(line, colon, "connection")) {
+				if (containsIgnoreCase(line, start, end, "close")) {
+					conn.keepAlive = false;
+				} else if (containsIgnoreCase(line, start, end, "keep-alive")) {
+					conn.keepAlive = true;
+				}
+			}
+		}
+		if (len < 0) {
+			throw new EOFException("Connection closed while reading response headers");
+		}
+		return status;
+	}
+
+	// Reads the body into data, growing it as needed; the length is left in conn.bodyLength
+	private byte[] readChunked(Connection conn, byte[] data) throws IOException {
+		int size = 0;
+
+		while (true) {
+			int len = conn.readLine();
+			if (len < 0) {
+				throw new EOFException("Connection closed while reading chunked response");
+			}
+			int end = indexOf(conn.line, len, (byte) ';');
+			long chunk = parseHex(conn.line, 0, end < 0 ? len : end);
+			if (chunk < 0 || size + chunk > Integer.MAX_VALUE) {
+				throw new ProtocolException("Invalid chunk size");
+			}
+			if (chunk == 0) {
+				break;
+			}
+			data = ensureCapacity(data, size + chunk);
+			readFully(conn.in, data, size, (int) chunk);
+			size += chunk;
+			if (conn.readLine() != 0) {
+				throw new ProtocolException("Missing CRLF after chunk");
+			}
+		}
+
+		// Skip any trailers
+		int len;
+		while ((len = conn.readLine()) > 0) {
+		}
+		if (len < 0) {
+			throw new EOFException("Connection closed while reading chunked response");
+		}
+		conn.bodyLength = size;
+		return data;
+	}
+
+	private byte[] readToEnd(Connection conn, byte[] data) throws IOException {
+		int size = 0;
+		while (true) {
+			data = ensureCapacity(data, size + 1);
+			int read = conn.in.read(data, size, data.length - size);
+			if (read < 0) {
+				break;
+			}
+			size += read;
+		}
+		conn.bodyLength = size;
+		return data;
+	}
+
+	private static byte[] ensureCapacity(byte[] data, long size) {
+		if (size <= data.length) {
+			return data;
+		}
+		return Arrays.copyOf(data, (int) Math.max(size, Math.min(Math.max((long) data.length * 2, 1024), Integer.MAX_VALUE)));
+	}
+
+	private static void readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int read = in.read(b, off, len);
+			if (read < 0) {
+				throw new EOFException("Connection closed before the full response was received");
+			}
+			off += read;
+			len -= read;
+		}
+	}
+
+	// URL.getFile() is already escaped, so is plain ASCII
+	private static void writePath(OutputStream out, String path) throws IOException {
+		if (path.length() == 0) {
+			out.write('/');
+			return;
+		}
+		for (int i = 0; i < path.length(); i++) {
+			out.write(path.charAt(i));
+		}
+	}
+
+	private static void writeDecimal(OutputStream out, int value) throws IOException {
+		if (value >= 10) {
+			writeDecimal(out, value / 10);
+		}
+		out.write('0' + value % 10);
+	}
+
+	private static long parseDecimal(byte[] b, int start, int end) {
+		if (start >= end) {
+			return -1;
+		}
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = b[i] - '0';
+			if (digit < 0 || digit > 9 || value > Long.MAX_VALUE / 10) {
+				return -1;
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	private static long parseHex(byte[] b, int start, int end) {
+		while (end > start && (b[end - 1] == ' ' || b[end - 1] == '\t')) {
+			end--;
+		}
+		if (start >= end || end - start > 15) {
+			return -1;
+		}
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = Character.digit(b[i], 16);
+			if (digit < 0) {
+				return -1;
+			}
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+
+	private static int indexOf(byte[] b, int len, byte c) {
+		for (int i = 0; i < len; i++) {
+			if (b[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean startsWith(byte[] b, byte[] prefix) {
+		for (int i = 0; i < prefix.length; i++) {
+			if (b[i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean headerIs(byte[] b, int len, String name) {
+		if (len != name.length()) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			if (Character.toLowerCase((char) b[i]) != name.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean containsIgnoreCase(byte[] b, int start, int end, String token) {
+		int n = token.length();
+		for (int i = start; i + n <= end; i++) {
+			int j = 0;
+			while (j < n && Character.toLowerCase((char) b[i + j]) == token.charAt(j)) {
+				j++;
+			}
+			if (j == n) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static final byte[] CRLF = {'\r', '\n'};
+	private static final byte[] POST = "POST ".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] HTTP_VERSION = " HTTP/1.1\r\n".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] ACCEPT_GZIP = "Accept-Encoding: gzip\r\n".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] HTTP_VERSION_PREFIX = "HTTP/1.".getBytes(StandardCharsets.ISO_8859_1);
+
+	private final class HostPool {
+
+		final String key;
+		final boolean secure;
+		final String host;
+		final int port;
+		// The headers after the request line, which is written for each request's path
+		final byte[] requestHead;
+		// Put before the path for HTTP proxies, which need the whole URL
+		final byte[] origin;
+		final Semaphore permits = new Semaphore(maxConnectionsPerHost, true);
+		private final ArrayDeque<Connection> idle = new ArrayDeque<>();
+
+		HostPool(String key, boolean secure, String host, int port, boolean defaultPort) {
+			this.key = key;
+			this.secure = secure;
+			this.host = host;
+			this.port = port;
+			this.origin = ("http://" + (defaultPort ? host : host + ":" + port)).getBytes(StandardCharsets.ISO_8859_1);
+			this.requestHead = (
+				"Host: " + (defaultPort ? host : host + ":" + port) + "\r\n" +
+				"Content-Type: application/x-www-form-urlencoded\r\n" +
+				"Connection: keep-alive\r\n"
+			).getBytes(StandardCharsets.ISO_8859_1);
+		}
+
+		// Most recently used first, as it is the least likely to have been dropped by the server
+		synchronized Connection poll() {
+			evictIdle(System.nanoTime());
+			Connection conn;
+			while ((conn = idle.pollFirst()) != null) {
+				if (!conn.socket.isClosed()) {
+					return conn;
+				}
+			}
+			return null;
+		}
+
+		synchronized void offer(Connection conn) {
+			long now = System.nanoTime();
+			conn.lastUsed = now;
+			conn.responseStarted = false;
+			idle.addFirst(conn);
+			evictIdle(now);
+		}
+
+		// The deque is in order of last use, so expired connections are all at its tail, where
+		// a busy pool that only ever takes from the head would otherwise leave them open
+		synchronized void evictIdle(long now) {
+			Iterator<Connection> iterator = idle.descendingIterator();
+			while (iterator.hasNext()) {
+				Connection conn = iterator.next();
+				if (now - conn.lastUsed < idleTimeoutNanos) {
+					break;
+				}
+				iterator.remove();
+				conn.close();
+			}
+		}
+
+		synchronized int idleCount() {
+			return idle.size();
+		}
+
+		synchronized void closeIdle() {
+			Connection conn;
+			while ((conn = idle.pollFirst()) != null) {
+				conn.close();
+			}
+		}
+	}
+
+	private static final class Connection {
+
+		static final int MAX_RETAINED_SCRATCH = 256 * 1024;
+
+		final Socket socket;
+		final InputStream in;
+		final OutputStream out;
+		byte[] line = new byte[256];
+		private byte[] scratch;
+		int readTimeout = -1;
+		long lastUsed;
+		long contentLength;
+		int bodyLength;
+		Charset charset;
+		boolean gzip;
+		boolean chunked;
+		boolean keepAlive;
+		boolean responseStarted;
+		boolean absoluteForm;
+
+		Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = new BufferedInputStream(socket.getInputStream(), 8192);
+			this.out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+		}
+
+		// Reads a CRLF or LF terminated line into line, returning its length or -1 at end of stream
+		int readLine() throws IOException {
+			int len = 0;
+			int c;
+			while ((c = in.read()) != -1) {
+				if (c == '\n') {
+					if (len > 0 && line[len - 1] == '\r') {
+						len--;
+					}
+					return len;
+				}
+				if (len == line.length) {
+					if (len >= 65536) {
+						throw new ProtocolException("Response header line too long");
+					}
+					line = Arrays.copyOf(line, len * 2);
+				}
+				line[len++] = (byte) c;
+			}
+			return len == 0 ? -1 : len;
+		}
+
+		// A reusable buffer of at least the given size for a body that is only needed briefly
+		byte[] scratch(int size) {
+			byte[] buffer = scratch;
+			scratch = null;
+			return buffer != null && buffer.length >= size ? buffer : new byte[Math.max(size, 1024)];
+		}
+
+		// Keeps the buffer for the next reply, unless an unusually large reply grew it
+		void release(byte[] buffer) {
+			if (buffer.length <= MAX_RETAINED_SCRATCH) {
+				scratch = buffer;
+			}
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Nothing useful to do with a failed close
+			}
+		}
+	}
+
+}
@@ -0,0 +1,250 @@
+/**
+ * Lazily decoded view of a form encoded gateway response
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Parsing only records where each key and value starts and ends in the reply buffer.
+// Values are URL decoded into strings the first time they are asked for.
+final class ResponseFields {
+
+	private static final int KEY_START = 0;
+	private static final int KEY_END = 1;
+	private static final int VALUE_START = 2;
+	private static final int VALUE_END = 3;
+
+	private final byte[] data;
+	private final Charset charset;
+	private int[] offsets;
+	private int count;
+	private String[] values;
+
+	private ResponseFields(byte[] data, Charset charset, int capacity) {
+		this.data = data;
+		this.charset = charset;
+		this.offsets = new int[capacity * 4];
+	}
+
+	static ResponseFields parse(byte[] data, int offset, int length) {
+		return parse(data, offset, length, StandardCharsets.UTF_8);
+	}
+
+	// Splits on '&' and line breaks, and each pair on its first '=', so values may contain '='.
+	// The buffer must not change while the returned fields are in use.
+	static ResponseFields parse(byte[] data, int offset, int length, Charset charset) {
+		ResponseFields fields = new ResponseFields(data, charset, 16);
+		int end = offset + length;
+		int start = offset;
+		int equals = -1;
+
+		for (int i = offset; i <= end; i++) {
+			byte b = i < end ? data[i] : (byte) '&';
+			if (b == '=' && equals < 0) {
+				equals = i;
+			} else if (b == '&' || b == '\n' || b == '\r') {
+				if (i > start) {
+					fields.add(start, equals < 0 ? i : equals, equals < 0 ? i : equals + 1, i);
+				}
+				start = i + 1;
+				equals = -1;
+			}
+		}
+		return fields;
+	}
+
+	int size() {
+		return count;
+	}
+
+	boolean contains(String key) {
+		return indexOf(key) >= 0;
+	}
+
+	// The decoded value of the last field with this key, or null
+	String get(String key) {
+		int index = indexOf(key);
+		return index < 0 ? null : value(index);
+	}
+
+	// Parses a decimal value without decoding it to a string; returns missing when the key is
+	// absent and throws NumberFormatException when it is not an integer
+	int getInt(String key, int missing) {
+		int index = indexOf(key);
+		if (index < 0) {
+			return missing;
+		}
+		int start = offsets[index * 4 + VALUE_START];
+		int end = offsets[index * 4 + VALUE_END];
+		boolean negative = start < end && data[start] == '-';
+		if (negative) {
+			start++;
+		}
+		if (start == end || end - start > 10) {
+			throw new NumberFormatException("For input string: \"" + value(index) + "\"");
+		}
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = data[i] - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException("For input string: \"" + value(index) + "\"");
+			}
+			value = value * 10 + digit;
+		}
+		value = negative ? -value : value;
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+			throw new NumberFormatException("For input string: \"" + value(index) + "\"");
+		}
+		return (int) value;
+	}
+
+	// Where the encoded key and value of a field start and end in the buffer
+	int keyStart(int index) {
+		return offsets[index * 4 + KEY_START];
+	}
+
+	int keyEnd(int index) {
+		return offsets[index * 4 + KEY_END];
+	}
+
+	int valueStart(int index) {
+		return offsets[index * 4 + VALUE_START];
+	}
+
+	int valueEnd(int index) {
+		return offsets[index * 4 + VALUE_END];
+	}
+
+	String key(int index) {
+		return decode(offsets[index * 4 + KEY_START], offsets[index * 4 + KEY_END]);
+	}
+
+	String value(int index) {
+		if (values == null) {
+			values = new String[count];
+		}
+		String value = values[index];
+		if (value == null) {
+			value = decode(offsets[index * 4 + VALUE_START], offsets[index * 4 + VALUE_END]);
+			values[index] = value;
+		}
+		return value;
+	}
+
+	private void add(int keyStart, int keyEnd, int valueStart, int valueEnd) {
+		if ((count + 1) * 4 > offsets.length) {
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+		}
+		int base = count * 4;
+		offsets[base + KEY_START] = keyStart;
+		offsets[base + KEY_END] = keyEnd;
+		offsets[base + VALUE_START] = valueStart;
+		offsets[base + VALUE_END] = valueEnd;
+		count++;
+	}
+
+	// The index of the last field with this key, or -1
+	int indexOf(String key) {
+		for (int i = count - 1; i >= 0; i--) {
+			if (keyEquals(i, key)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// Compares the encoded key against an ASCII name without decoding it to a string
+	private boolean keyEquals(int index, String key) {
+		int pos = offsets[index * 4 + KEY_START];
+		int end = offsets[index * 4 + KEY_END];
+		int n = key.length();
+		int j = 0;
+
+		while (pos < end) {
+			int b = data[pos] & 0xFF;
+			if (b == '+') {
+				b = ' ';
+				pos++;
+			} else if (b == '%' && pos + 2 < end && hex(pos + 1) >= 0 && hex(pos + 2) >= 0) {
+				b = (hex(pos + 1) << 4) | hex(pos + 2);
+				pos += 3;
+			} else {
+				pos++;
+			}
+
+			if (b >= 0x80) {
+				// Multi-byte characters need the charset, so fall back to a full decode
+				return key(index).equals(key);
+			}
+			if (j == n || key.charAt(j) != b) {
+				return false;
+			}
+			j++;
+		}
+		return j == n;
+	}
+
+	private String decode(int start, int end) {
+		int i = start;
+		while (i < end && data[i] != '%' && data[i] != '+') {
+			i++;
+		}
+		if (i == end) {
+			return new String(data, start, end - start, charset);
+		}
+
+		byte[] decoded = new byte[end - start];
+		int length = i - start;
+		System.arraycopy(data, start, decoded, 0, length);
+		while (i < end) {
+			byte b = data[i];
+			if (b == '+') {
+				decoded[length++] = ' ';
+				i++;
+			} else if (b == '%' && i + 2 < end && hex(i + 1) >= 0 && hex(i + 2) >= 0) {
+				decoded[length++] = (byte) ((hex(i + 1) << 4) | hex(i + 2));
+				i += 3;
+			} else {
+				decoded[length++] = b;
+				i++;
+			}
+		}
+		return new String(decoded, 0, length, charset);
+	}
+
+	private int hex(int pos) {
+		return Character.digit(data[pos], 16);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder out = new StringBuilder("{");
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				out.append(", ");
+			}
+			out.append(key(i)).append('=').append(value(i));
+		}
+		return out.append('}').toString();
+	}
+
+}
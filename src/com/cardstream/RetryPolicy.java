@@ -0,0 +1,135 @@
+/**
+ * How many times, and how quickly, failed gateway calls are retried
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Retrying is safe because a retried request is sent with the same transactionUnique, which the
+// gateway uses to recognise a duplicate instead of processing it twice. Each wait is a random
+// time up to baseDelay * 2^(attempt - 1), capped at maxDelay, so clients that failed together
+// do not all retry together. Immutable; the with* methods return modified copies.
+public final class RetryPolicy {
+
+	// A single attempt, as Transaction.authorise() has always made
+	public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, 0);
+
+	private final int maxAttempts;
+	private final long baseDelayMillis;
+	private final long maxDelayMillis;
+	private final long totalTimeoutMillis;
+
+	// Three attempts, waiting up to 100ms then 200ms, all within 30 seconds
+	public RetryPolicy() {
+		this(3, 100, 2000, 30000);
+	}
+
+	private RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, long totalTimeoutMillis) {
+		this.maxAttempts = maxAttempts;
+		this.baseDelayMillis = baseDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		this.totalTimeoutMillis = totalTimeoutMillis;
+	}
+
+	// Including the first attempt
+	public RetryPolicy withMaxAttempts(int maxAttempts) {
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("maxAttempts must be at least 1");
+		}
+		return new RetryPolicy(maxAttempts, baseDelayMillis, maxDelayMillis, totalTimeoutMillis);
+	}
+
+	public RetryPolicy withBackoff(long baseDelayMillis, long maxDelayMillis) {
+		if (baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis) {
+			throw new IllegalArgumentException("Backoff must satisfy 0 <= baseDelayMillis <= maxDelayMillis");
+		}
+		return new RetryPolicy(maxAttempts, baseDelayMillis, maxDelayMillis, totalTimeoutMillis);
+	}
+
+	// No retry is started once this long has passed since the first attempt; 0 for no limit.
+	// Each attempt is bounded by the transport's own connect and read timeouts.
+	public RetryPolicy withTotalTimeout(long totalTimeoutMillis) {
+		if (totalTimeoutMillis < 0) {
+			throw new IllegalArgumentException("totalTimeoutMillis must not be negative");
+		}
+		return new RetryPolicy(maxAttempts, baseDelayMillis, maxDelayMillis, totalTimeoutMillis);
+	}
+
+	public int getMaxAttempts() {
+		return this.maxAttempts;
+	}
+
+	public long getBaseDelayMillis() {
+		return this.baseDelayMillis;
+	}
+
+	public long getMaxDelayMillis() {
+		return this.maxDelayMillis;
+	}
+
+	public long getTotalTimeoutMillis() {
+		return this.totalTimeoutMillis;
+	}
+
+	// Delay before the given retry, counting the first retry as 1
+	long delayMillis(int retry) {
+		long ceiling = baseDelayMillis << Math.min(retry - 1, 30);
+		if (ceiling <= 0 || ceiling > maxDelayMillis) {
+			ceiling = maxDelayMillis;
+		}
+		return ceiling == 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+
+	// Whether another attempt should follow the given failed one, started at startNanos
+	boolean shouldRetry(IOException failure, int attempt, long delayMillis, long startNanos) {
+		if (attempt >= maxAttempts || !isRetryable(failure)) {
+			return false;
+		}
+		return totalTimeoutMillis == 0
+			|| System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(delayMillis) < TimeUnit.MILLISECONDS.toNanos(totalTimeoutMillis);
+	}
+
+	private static boolean isRetryable(IOException failure) {
+		if (failure instanceof CircuitOpenException || failure instanceof LimitExceededException
+				|| failure instanceof MalformedURLException) {
+			return false;
+		}
+		if (failure instanceof GatewayClient.HttpStatusException) {
+			return ((GatewayClient.HttpStatusException) failure).status >= 500;
+		}
+		// An interrupted caller wants to stop, but a timed out read may succeed next time
+		if (failure instanceof InterruptedIOException && !(failure instanceof SocketTimeoutException)) {
+			return false;
+		}
+		return !Thread.currentThread().isInterrupted();
+	}
+
+	@Override
+	public String toString() {
+		return "RetryPolicy{maxAttempts=" + maxAttempts + ", backoff=" + baseDelayMillis + "-" + maxDelayMillis
+			+ "ms, totalTimeout=" + totalTimeoutMillis + "ms}";
+	}
+
+}
@@ -0,0 +1,108 @@
+/**
+ * Signed request bodies and their responses, by transactionUnique
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+// Lets a request that is submitted again with the same transactionUnique, such as a checkout
+// the customer retried, reuse the gateway's answer to the first submission instead of being
+// sent again. A resubmission while the first is still in flight waits for its answer. A
+// request only matches if every field is the same; otherwise it is sent as usual and replaces
+// the entry. Once answered, the request is kept without its card details, just to match
+// resubmissions; if the first submission fails its entry is removed, so the next is sent
+// afresh. Entries expire ttlMillis after the request was first sent, so keep it to the time a
+// customer might retry.
+public final class SignedRequestCache {
+
+	private final ExpiringCache<Entry> entries;
+
+	public SignedRequestCache(int maxEntries, long ttlMillis) {
+		this.entries = new ExpiringCache<>(maxEntries, ttlMillis);
+	}
+
+	// The gateway's answer to this transactionUnique, or null if none is stored, it has expired
+	// or the request is still in flight
+	public AuthResponse getResponse(String transactionUnique) {
+		Entry entry = entries.get(transactionUnique);
+		return entry == null ? null : entry.response();
+	}
+
+	public void remove(String transactionUnique) {
+		entries.remove(transactionUnique);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	// Stores a new entry and returns it, unless one for a request with the same fields is
+	// already stored. That one is returned instead, and the caller must wait for its answer
+	// rather than send.
+	Entry claim(Entry entry) {
+		GatewayRequest request = entry.request;
+		String unique = request.getTransactionUnique();
+		if (unique == null) {
+			return entry;
+		}
+		return entries.putIfAbsent(unique, entry, current -> current.request.sameAs(request));
+	}
+
+	void complete(Entry entry, AuthResponse response) {
+		entry.request = entry.request.withoutCard();
+		entry.answer.complete(response);
+	}
+
+	void fail(Entry entry, Throwable error) {
+		if (error instanceof CompletionException && error.getCause() != null) {
+			error = error.getCause();
+		}
+		String unique = entry.request.getTransactionUnique();
+		if (unique != null) {
+			entries.remove(unique, entry);
+		}
+		entry.answer.completeExceptionally(error);
+	}
+
+	static final class Entry {
+
+		private volatile GatewayRequest request;
+		private final CompletableFuture<AuthResponse> answer = new CompletableFuture<>();
+
+		Entry(GatewayRequest request) {
+			this.request = request;
+		}
+
+		// Completes when the first submission is answered or fails
+		CompletableFuture<AuthResponse> answer() {
+			return answer;
+		}
+
+		AuthResponse response() {
+			return answer.isDone() && !answer.isCompletedExceptionally() ? answer.join() : null;
+		}
+	}
+
+}
@@ -0,0 +1,137 @@
+/**
+ * SHA-512 form signing with per-thread digests
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.SortedMap;
+
+// The signature is the lower-case hex SHA-512 of the encoded form followed by the pre-shared key
+final class Signer {
+
+	private static final MessageDigest PROTOTYPE;
+	private static final ThreadLocal<Signer> LOCAL = ThreadLocal.withInitial(Signer::new);
+
+	private static final byte[] HEX = {
+		'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+	};
+	private static final byte[] SIGNATURE_KEY = {
+		's', 'i', 'g', 'n', 'a', 't', 'u', 'r', 'e', '='
+	};
+
+	static {
+		try {
+			PROTOTYPE = MessageDigest.getInstance("SHA-512");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-512 is not available", e);
+		}
+	}
+
+	private final MessageDigest digest;
+	private final byte[] hash;
+	private final byte[] hex;
+
+	private Signer() {
+		MessageDigest md;
+		try {
+			md = (MessageDigest) PROTOTYPE.clone();
+		} catch (CloneNotSupportedException e) {
+			try {
+				md = MessageDigest.getInstance(PROTOTYPE.getAlgorithm(), PROTOTYPE.getProvider());
+			} catch (NoSuchAlgorithmException impossible) {
+				throw new IllegalStateException(impossible);
+			}
+		}
+		this.digest = md;
+		this.hash = new byte[md.getDigestLength()];
+		this.hex = new byte[hash.length * 2];
+	}
+
+	static Signer get() {
+		return LOCAL.get();
+	}
+
+	// Signs everything written to the form so far and appends it as the signature field
+	void sign(FormEncoder form, byte[] key) {
+		digest(form.buffer(), 0, form.length(), key);
+		if (form.length() > 0) {
+			form.write('&');
+		}
+		form.write(SIGNATURE_KEY, 0, SIGNATURE_KEY.length);
+		form.write(hex, 0, hex.length);
+	}
+
+	// Signs decoded fields the way Transaction does: sorted by key, then URL encoded
+	String signature(SortedMap<String, String> fields, byte[] key) {
+		FormEncoder form = FormEncoder.get();
+		for (Map.Entry<String, String> field : fields.entrySet()) {
+			form.add(field.getKey(), field.getValue());
+		}
+		return signature(form.buffer(), 0, form.length(), key);
+	}
+
+	// Whether expected, the lower-case hex held in its own byte range, is the signature of the
+	// fields. Compared in constant time, so timing does not reveal how much of a forgery matched.
+	boolean verify(SortedMap<String, String> fields, byte[] key, byte[] expected, int expectedOffset, int expectedLength) {
+		FormEncoder form = FormEncoder.get();
+		for (Map.Entry<String, String> field : fields.entrySet()) {
+			form.add(field.getKey(), field.getValue());
+		}
+		return verify(form.buffer(), 0, form.length(), key, expected, expectedOffset, expectedLength);
+	}
+
+	boolean verify(byte[] data, int offset, int length, byte[] key, byte[] expected, int expectedOffset, int expectedLength) {
+		digest(data, offset, length, key);
+		if (expectedLength != hex.length) {
+			return false;
+		}
+		int difference = 0;
+		for (int i = 0; i < hex.length; i++) {
+			difference |= hex[i] ^ expected[expectedOffset + i];
+		}
+		return difference == 0;
+	}
+
+	String signature(byte[] data, int offset, int length, byte[] key) {
+		digest(data, offset, length, key);
+		return new String(hex, 0, hex.length, StandardCharsets.ISO_8859_1);
+	}
+
+	private void digest(byte[] data, int offset, int length, byte[] key) {
+		digest.reset();
+		digest.update(data, offset, length);
+		digest.update(key);
+		try {
+			digest.digest(hash, 0, hash.length);
+		} catch (DigestException e) {
+			throw new IllegalStateException(e);
+		}
+
+		for (int i = 0, j = 0; i < hash.length; i++) {
+			hex[j++] = HEX[(hash[i] >> 4) & 0xF];
+			hex[j++] = HEX[hash[i] & 0xF];
+		}
+	}
+
+}
@@ -0,0 +1,304 @@
+/**
+ * In-process stand-in for the gateway's direct integration endpoint
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+// Verifies request signatures exactly as the SDK produces them and answers with signed,
+// form encoded replies. Response codes, latency, HTTP errors and slow replies are configurable
+// so clients, thread pools and connection pools can be exercised without the live gateway.
+// Start the JVM with -Dsun.net.httpserver.nodelay=true, or replies wait on delayed ACKs and
+// every request takes ~40ms; the property is JVM-wide, so is not set from here.
+public class StubGateway {
+
+	// Sent instead of the configured response code when the signature does not verify
+	public static final int INVALID_SIGNATURE = 30;
+
+	private static final String PATH = "/direct/";
+	private static final String BATCH_PATH = PATH + "batch";
+	private static final Set<String> NOT_ECHOED = new HashSet<>(Arrays.asList(
+		"cardNumber", "cardCVV", "cardExpiryDate", "cardExpiryMonth", "cardExpiryYear",
+		"cardStartMonth", "cardStartYear", "cardIssueNumber", "signature"
+	));
+
+	private final byte[] preSharedKey;
+	private final AtomicLong xrefSequence = new AtomicLong();
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder signatureFailures = new LongAdder();
+
+	private volatile int[] responseCodes = {AuthResponse.AUTHORISED};
+	private volatile long minLatencyMillis = 0;
+	private volatile long maxLatencyMillis = 0;
+	private volatile double errorRate = 0;
+	private volatile int slowChunkSize = 0;
+	private volatile long slowChunkDelayMillis = 0;
+	private volatile boolean compression = false;
+
+	private HttpServer server;
+	private ExecutorService executor;
+
+	public StubGateway(String preSharedKey) {
+		this.preSharedKey = preSharedKey.getBytes();
+	}
+
+	public synchronized void start() throws IOException {
+		start(0);
+	}
+
+	// Listens on the loopback interface; port 0 picks a free port
+	public synchronized void start(int port) throws IOException {
+		if (server != null) {
+			throw new IllegalStateException("Stub gateway already started");
+		}
+		executor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "stub-gateway");
+			thread.setDaemon(true);
+			return thread;
+		});
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+		server.setExecutor(executor);
+		server.createContext(PATH, this::handle);
+		server.start();
+	}
+
+	public synchronized void stop() {
+		if (server != null) {
+			server.stop(0);
+			executor.shutdownNow();
+			server = null;
+		}
+	}
+
+	public synchronized String getURL() {
+		if (server == null) {
+			throw new IllegalStateException("Stub gateway not started");
+		}
+		InetSocketAddress address = server.getAddress();
+		return "http://" + address.getAddress().getHostAddress() + ":" + address.getPort() + PATH;
+	}
+
+	// Accepts the line-per-request envelope sent by GatewayClient.authoriseBatch()
+	public synchronized String getBatchURL() {
+		return getURL() + "batch";
+	}
+
+	// Each reply uses one of these codes, chosen at random; repeat a code to weight it
+	public void setResponseCodes(int... responseCodes) {
+		if (responseCodes.length == 0) {
+			throw new IllegalArgumentException("At least one response code is required");
+		}
+		this.responseCodes = responseCodes.clone();
+	}
+
+	// Every reply is delayed by a uniformly random time in this range
+	public void setLatency(long minMillis, long maxMillis) {
+		if (minMillis < 0 || maxMillis < minMillis) {
+			throw new IllegalArgumentException("Latency range must satisfy 0 <= min <= max");
+		}
+		this.minLatencyMillis = minMillis;
+		this.maxLatencyMillis = maxMillis;
+	}
+
+	// Fraction of requests, between 0 and 1, answered with HTTP 503 instead of a reply
+	public void setErrorRate(double errorRate) {
+		if (errorRate < 0 || errorRate > 1) {
+			throw new IllegalArgumentException("errorRate must be between 0 and 1");
+		}
+		this.errorRate = errorRate;
+	}
+
+	// Sends replies in chunks of chunkSize bytes with a pause before each one; 0 disables
+	public void setSlowReply(int chunkSize, long chunkDelayMillis) {
+		if (chunkSize < 0 || chunkDelayMillis < 0) {
+			throw new IllegalArgumentException("chunkSize and chunkDelayMillis must not be negative");
+		}
+		this.slowChunkSize = chunkSize;
+		this.slowChunkDelayMillis = chunkDelayMillis;
+	}
+
+	// Gzip replies to clients that send Accept-Encoding: gzip
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	public long getRequestCount() {
+		return requests.sum();
+	}
+
+	public long getSignatureFailureCount() {
+		return signatureFailures.sum();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			requests.increment();
+			byte[] body = exchange.getRequestBody().readAllBytes();
+
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+
+			long latency = minLatencyMillis;
+			if (maxLatencyMillis > minLatencyMillis) {
+				latency += ThreadLocalRandom.current().nextLong(maxLatencyMillis - minLatencyMillis + 1);
+			}
+			if (latency > 0) {
+				Thread.sleep(latency);
+			}
+
+			if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+				exchange.sendResponseHeaders(503, -1);
+				return;
+			}
+
+			byte[] reply = BATCH_PATH.equals(exchange.getRequestURI().getPath()) ? batchReply(body) : reply(body);
+			// FormEncoder percent-encodes as ISO-8859-1
+			exchange.getResponseHeaders().set("Content-Type", "application/x-www-form-urlencoded; charset=ISO-8859-1");
+			String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+			if (compression && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+				reply = gzip(reply);
+				exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+			}
+			writeReply(exchange, reply);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	byte[] reply(byte[] body) {
+		// ISO-8859-1 maps each byte to one char, so re-encoding reproduces the signed bytes
+		ResponseFields request = ResponseFields.parse(body, 0, body.length, StandardCharsets.ISO_8859_1);
+		TreeMap<String, String> fields = new TreeMap<>();
+		for (int i = 0; i < request.size(); i++) {
+			String key = request.key(i);
+			if (!"signature".equals(key)) {
+				fields.put(key, request.value(i));
+			}
+		}
+
+		int responseCode;
+		String responseMessage;
+		String signature = request.get("signature");
+		if (signature == null || !signature.equals(Signer.get().signature(fields, preSharedKey))) {
+			signatureFailures.increment();
+			responseCode = INVALID_SIGNATURE;
+			responseMessage = "INVALID SIGNATURE";
+		} else {
+			int[] codes = responseCodes;
+			responseCode = codes[ThreadLocalRandom.current().nextInt(codes.length)];
+			responseMessage = message(responseCode);
+		}
+
+		TreeMap<String, String> reply = new TreeMap<>();
+		for (Map.Entry<String, String> field : fields.entrySet()) {
+			if (!NOT_ECHOED.contains(field.getKey())) {
+				reply.put(field.getKey(), field.getValue());
+			}
+		}
+		reply.put("responseCode", Integer.toString(responseCode));
+		reply.put("responseMessage", responseMessage);
+		reply.put("xref", "STUB" + Long.toString(xrefSequence.incrementAndGet(), 36).toUpperCase(Locale.ROOT));
+		reply.put("state", responseCode == AuthResponse.AUTHORISED ? "captured" : "declined");
+
+		String replySignature = Signer.get().signature(reply, preSharedKey);
+		FormEncoder form = FormEncoder.get();
+		for (Map.Entry<String, String> field : reply.entrySet()) {
+			form.add(field.getKey(), field.getValue());
+		}
+		form.add("signature", replySignature);
+		return form.toByteArray();
+	}
+
+	// Each line is answered as if it had been sent on its own
+	byte[] batchReply(byte[] body) {
+		FormEncoder out = new FormEncoder();
+		int start = 0;
+		for (int i = 0; i <= body.length; i++) {
+			if (i == body.length || body[i] == '\n') {
+				if (i > start) {
+					byte[] reply = reply(Arrays.copyOfRange(body, start, i));
+					out.write(reply, 0, reply.length);
+					out.write('\n');
+				}
+				start = i + 1;
+			}
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+		try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+			gzip.write(data);
+		}
+		return out.toByteArray();
+	}
+
+	private static String message(int responseCode) {
+		switch (responseCode) {
+			case AuthResponse.AUTHORISED:
+				return "AUTHCODE:" + (100000 + ThreadLocalRandom.current().nextInt(900000));
+			case AuthResponse.REFERRED:
+				return "CARD REFERRED";
+			case AuthResponse.DECLINED_KEEP_CARD:
+				return "CARD DECLINED - KEEP CARD";
+			case AuthResponse.DECLINED:
+				return "CARD DECLINED";
+			default:
+				return "AUTHORISATION FAILED";
+		}
+	}
+
+	private void writeReply(HttpExchange exchange, byte[] reply) throws IOException, InterruptedException {
+		int chunkSize = slowChunkSize;
+		if (chunkSize == 0) {
+			exchange.sendResponseHeaders(200, reply.length);
+			exchange.getResponseBody().write(reply);
+			return;
+		}
+
+		exchange.sendResponseHeaders(200, 0);
+		OutputStream out = exchange.getResponseBody();
+		for (int offset = 0; offset < reply.length; offset += chunkSize) {
+			Thread.sleep(slowChunkDelayMillis);
+			out.write(reply, offset, Math.min(chunkSize, reply.length - offset));
+			out.flush();
+		}
+	}
+
+}
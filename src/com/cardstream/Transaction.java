@@ -23,8 +23,9 @@ package com.cardstream;
 import java.net.*;
 import java.io.*;
 import java.util.*;
-import java.security.*;
-import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 public class Transaction {
 
@@ -48,10 +49,8 @@ public class Transaction {
 		public int getValue() { return id; }
 	}
 
-	private String reqString = "";
-	private String resString = "";
+	private AuthResponse authResponse;
 	private Boolean httpSuccess = false;
-	private final HashMap<String, String> resCol = new HashMap<>();
 	private final TreeMap<String, String> formData = new TreeMap<>();
 
 	// Merchant details
@@ -59,6 +58,16 @@ public class Transaction {
 	private String merchantID = "";
 	private String merchantPassword = "";
 	private String preSharedKey;
+	private byte[] preSharedKeyBytes;
+	private Transport transport;
+	private RetryPolicy retryPolicy = RetryPolicy.NONE;
+	private CircuitBreaker circuitBreaker;
+	private AdaptiveLimiter limiter;
+	private MetricsListener metricsListener;
+	private Journal journal;
+	private SignedRequestCache signedRequestCache;
+	private IOException lastError;
+	private final TransactionTemplate template;
 
 	// Order fields
 	private String action;
@@ -93,184 +102,186 @@ public class Transaction {
 	private String customerPhone;
 	private String customerEmail;
 
+	// Order details
+	private Basket basket;
+	private String taxValue;
+	private String discountValue;
 	private String taxDiscountDescription;
 
 
 	public Transaction(String url, String merchantID, String preSharedKey) {
 		GATEWAY_URL = url;
+		template = null;
 		try {
 			setMerchantID(merchantID);
 		} catch (Exception e) {
 			// Leave until authorisation to throw exceptions
 		}
-		this.preSharedKey = preSharedKey;
+		setPreSharedKey(preSharedKey);
 	}
 
-	public Transaction(String url, String merchantId, String preSharedKey, String merchantPassword) {
+	public Transaction(String url, String merchantID, String preSharedKey, String merchantPassword) {
 		GATEWAY_URL = url;
+		template = null;
 		try {
 			setMerchantID(merchantID);
 		} catch (Exception e) {
 			// Leave until authorisation to throw exceptions
 		}
-		this.preSharedKey = preSharedKey;
+		setPreSharedKey(preSharedKey);
 		this.merchantPassword = merchantPassword;
 	}
 
+	// Template fields are sent as encoded by the template; setting the same field here overrides it
+	public Transaction(TransactionTemplate template) {
+		GATEWAY_URL = template.getGatewayURL();
+		this.template = template;
+		this.merchantID = template.get("merchantID");
+		this.preSharedKey = template.getPreSharedKey();
+		this.preSharedKeyBytes = template.getPreSharedKeyBytes();
+		this.action = template.get("action");
+		this.type = template.get("type");
+		this.currencyCode = template.get("currencyCode");
+		this.countryCode = template.get("countryCode");
+		this.callbackURL = template.get("callbackURL");
+	}
+
 	public Boolean authorise() throws Exception {
 		try {
-			// Build the form, ensuring the necessary parameters have been defined
-			buildForm();
+			// Build the request, ensuring the necessary parameters have been defined
+			GatewayRequest request = toRequest();
+			httpSuccess = false;
+			authResponse = null;
+			lastError = null;
 
-			// Send the form
-			if (!sendForm()) {
+			// Send the request and parse the response
+			try {
+				authResponse = client().authorise(request);
+			} catch (IOException e) {
+				lastError = e;
 				return false;
 			}
 
-			// Parse the response
-			ParseResponse();
-
+			httpSuccess = true;
 			return true;
 		} catch (Exception e) {
 			throw new Exception(e.getMessage());
 		}
 	}
 
-	private void buildForm() throws Exception {
-
-		// Make sure transaction is always unique
-		if (transactionUnique == null || transactionUnique.length() == 0) {
-			setTransactionUnique(generateUniqid());
-		}
+	public CompletableFuture<AuthResponse> authoriseAsync() {
+		return authoriseAsync(ForkJoinPool.commonPool());
+	}
 
-		// Make sure the current values are valid
+	// Completes with the parsed response, or exceptionally if the form is invalid or the
+	// request fails. Without an explicit transport the request is
+	// sent on the shared non-blocking HttpClientTransport, so no thread waits on the gateway.
+	public CompletableFuture<AuthResponse> authoriseAsync(Executor executor) {
+		final GatewayRequest request;
+		final GatewayClient client;
 		try {
-			setAmount(amount);
-			setCardNumber(cardNumber);
-			setCustomerName(customerName);
-			setCardExpiryYear(cardExpiryYear);
-			setCardExpiryMonth(cardExpiryMonth);
-			setCurrencyCode(currencyCode);
-			setCountryCode(countryCode);
+			request = toRequest();
+			client = client();
 		} catch (Exception e) {
-			throw e;
+			CompletableFuture<AuthResponse> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
 		}
 
-		Set keyset = formData.keySet();
-		Iterator iterator = keyset.iterator();
+		httpSuccess = false;
+		authResponse = null;
+		lastError = null;
+		return client.authoriseAsync(request, executor).thenApply(response -> {
+			authResponse = response;
+			httpSuccess = true;
+			return response;
+		});
+	}
 
-		boolean first = true;
-		while (iterator.hasNext()) {
-			if (!first) {
-				reqString += "&";
-			}
-			first = false;
+	// An immutable copy of the current fields, which can be executed by any GatewayClient
+	public GatewayRequest toRequest() throws Exception {
 
-			String propertyKey = (String) iterator.next();
-			reqString += URLEncoder.encode(propertyKey, "ISO-8859-1") + "=" + URLEncoder.encode(formData.get(propertyKey), "ISO-8859-1");
+		// Make sure transaction is always unique
+		if (transactionUnique == null || transactionUnique.length() == 0) {
+			setTransactionUnique(generateUniqid());
 		}
-		reqString += "&signature=" + hashFormData(reqString + this.preSharedKey);
-	}
-
-	private String hashFormData(String Data) {
-		MessageDigest md;
 
-		try {
-			md = MessageDigest.getInstance("SHA-512");
-
-			md.update(Data.getBytes());
-
-			byte[] mb = md.digest();
-			String out = "";
-			for (int i = 0; i < mb.length; i++) {
-				byte temp = mb[i];
-				String s = Integer.toHexString(new Byte(temp));
-				while (s.length() < 2) {
-					s = "0" + s;
-				}
-				s = s.substring(s.length() - 2);
-				out += s;
-			}
-			//System.out.println(out.length());
-			//System.out.println("CRYPTO: " + out);
+		boolean itemised = basket != null && basket.size() > 0;
+		String sentAmount = itemised ? basketAmount() : amount;
 
-			return out;
-		} catch (NoSuchAlgorithmException e) {
-			System.out.println("ERROR: " + e.getMessage());
+		// Values are validated as they are set, so only check the required ones were. Requests
+		// referring to an earlier transaction by xref take the card and customer details from
+		// it; only captures, cancellations and refunds of a sale take the amount and currency too.
+		boolean fromOriginal = xref != null && actsOnOriginal(action);
+		if (!fromOriginal) {
+			requireField("amount", sentAmount);
+		}
+		if (xref == null) {
+			requireField("cardNumber", cardNumber);
+			requireField("customerName", customerName);
+			requireField("cardExpiryYear", cardExpiryYear);
+			requireField("cardExpiryMonth", cardExpiryMonth);
+		}
+		if (!fromOriginal) {
+			requireField("currencyCode", currencyCode);
+			requireField("countryCode", countryCode);
 		}
-		return null;
 
+		SortedMap<String, String> fields = formData;
+		if (amount == null && sentAmount != null) {
+			fields = new TreeMap<>(formData);
+			fields.put("amount", sentAmount);
+		}
+		return itemised ? new GatewayRequest(template, fields, basket) : new GatewayRequest(template, fields);
 	}
 
-	private boolean sendForm() {
-		String line;
-
-		try {
-
-			// Create the request
-			URL reqUrl = new URL(GATEWAY_URL);
-			HttpURLConnection reqConn = (HttpURLConnection) reqUrl.openConnection();
-			reqConn.setDoInput(true);
-			reqConn.setDoOutput(true);
-			reqConn.setUseCaches(false);
-			reqConn.setRequestMethod("POST");
-			reqConn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-			reqConn.setRequestProperty("Connection", "Close");
-			reqConn.setRequestProperty("charset", "utf-8");
-			reqConn.setRequestProperty("Content-Length", "" + Integer.toString(reqString.getBytes().length));
-			try (DataOutputStream reqStream = new DataOutputStream(reqConn.getOutputStream())) {
-				reqStream.writeBytes(reqString);
-				reqStream.flush();
-			}
-			try (BufferedReader resBuf = new BufferedReader(new InputStreamReader(reqConn.getInputStream()))) {
-				while (true) {
-					line = resBuf.readLine();
-
-					if (line == null) {
-						break;
-					}
+	// The amount charged must be the items' total plus tax or less discount. When it has not
+	// been set it is worked out from them for this request only, so it follows later changes
+	// to the basket.
+	private String basketAmount() throws Exception {
+		long expected = basket.getTotal();
+		if (taxValue != null) {
+			expected += Long.parseLong(taxValue);
+		}
+		if (discountValue != null) {
+			expected -= Long.parseLong(discountValue);
+		}
 
-					resString += line;
-				}
+		if (amount == null) {
+			if (expected < 10 || expected > Integer.MAX_VALUE) {
+				throw new Exception("amount of " + expected + " for the basket is out of range");
 			}
-
-			httpSuccess = true;
-
-		} catch (IOException e) {
-			System.out.println(e.getMessage());
-			return false;
+			return Long.toString(expected);
+		} else if (Long.parseLong(amount) != expected) {
+			throw new Exception("amount " + amount + " does not match the basket total of " + expected);
 		}
-
-		return true;
+		return amount;
 	}
 
-	private void ParseResponse() {
-		if (resString.length() > 0) {
-			for (String kvPairStr : resString.split("&")) {
-				String[] kvPair = kvPairStr.split("=");
+	private static boolean actsOnOriginal(String action) {
+		return ACTION.CAPTURE.name().equals(action) || ACTION.CANCEL.name().equals(action)
+			|| ACTION.REFUND_SALE.name().equals(action);
+	}
 
-				if (kvPair.length == 2) {
-					resCol.put(kvPair[0], kvPair[1]);
-				}
-			}
+	private static void requireField(String name, String value) throws Exception {
+		if (value == null) {
+			throw new Exception(name + " must be set");
 		}
 	}
 
-	public String generateUniqid(String prefix, boolean moreEntropy) {
-		long time = System.currentTimeMillis();
-		String uniqid = "";
-		if (!moreEntropy) {
-			uniqid = String.format("%s%08x%05x", prefix, time / 1000, time);
-		} else {
-			SecureRandom sec = new SecureRandom();
-			byte[] sbuf = sec.generateSeed(8);
-			ByteBuffer bb = ByteBuffer.wrap(sbuf);
-
-			uniqid = String.format("%s%08x%05x", prefix, time / 1000, time);
-			uniqid += "." + String.format("%.8s", "" + bb.getLong() * -1);
-		}
+	private GatewayClient client() throws MalformedURLException {
+		GatewayClient client = new GatewayClient(new URL(GATEWAY_URL), preSharedKeyBytes, transport);
+		client.setRetryPolicy(retryPolicy);
+		client.setCircuitBreaker(circuitBreaker);
+		client.setAdaptiveLimiter(limiter);
+		client.setSignedRequestCache(signedRequestCache);
+		client.setMetricsListener(metricsListener);
+		client.setJournal(journal);
+		return client;
+	}
 
-		return uniqid;
+	public String generateUniqid(String prefix, boolean moreEntropy) {
+		return UniqueIdGenerator.getDefault().next(prefix, moreEntropy);
 	}
 
 	public String generateUniqid() {
@@ -286,8 +297,83 @@ public class Transaction {
 		}
 	}
 
+	String getMerchantID() {
+		return this.merchantID;
+	}
+
 	public void setPreSharedKey(String preSharedKey) {
 		this.preSharedKey = preSharedKey;
+		// Encoded with the platform charset, as the key has always been signed
+		this.preSharedKeyBytes = preSharedKey == null ? new byte[0] : preSharedKey.getBytes();
+	}
+
+	// Transactions share PooledTransport.getDefault() unless given their own transport
+	public void setTransport(Transport transport) {
+		this.transport = transport;
+	}
+
+	public Transport getTransport() {
+		return this.transport == null ? PooledTransport.getDefault() : this.transport;
+	}
+
+	// authorise() sends the request once unless a retry policy is set
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy == null ? RetryPolicy.NONE : retryPolicy;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return this.retryPolicy;
+	}
+
+	// Breakers should be shared by every transaction sent to the same gateway
+	public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return this.circuitBreaker;
+	}
+
+	// Shared with other transactions, so they are admitted against one limit; null disables
+	public void setAdaptiveLimiter(AdaptiveLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	public AdaptiveLimiter getAdaptiveLimiter() {
+		return this.limiter;
+	}
+
+	// Calling authorise() again after a failure resends the body signed the first time, and
+	// calling it after a response returns that response, as long as no field has changed
+	public void setSignedRequestCache(SignedRequestCache signedRequestCache) {
+		this.signedRequestCache = signedRequestCache;
+	}
+
+	public SignedRequestCache getSignedRequestCache() {
+		return this.signedRequestCache;
+	}
+
+	// Connection and I/O timings come from the transport, if it is a PooledTransport with a listener
+	public void setMetricsListener(MetricsListener metricsListener) {
+		this.metricsListener = metricsListener;
+	}
+
+	public MetricsListener getMetricsListener() {
+		return this.metricsListener;
+	}
+
+	// Share one journal between every transaction the process sends
+	public void setJournal(Journal journal) {
+		this.journal = journal;
+	}
+
+	public Journal getJournal() {
+		return this.journal;
+	}
+
+	// Why the last authorise() returned false, or null if it did not
+	public IOException getLastError() {
+		return this.lastError;
 	}
 
 	public void setAmount(int amount) throws Exception {
@@ -300,17 +386,12 @@ public class Transaction {
 	}
 
 	public void setAmount(String amount) throws Exception {
-		try {
-			if (amount.matches("[0-9]+\\.[0-9]+")) {
-				this.setAmount(Float.parseFloat(amount));
-			} else if (amount.matches("[0-9]+")) {
-				this.setAmount(Integer.parseInt(amount));
-			} else {
-				throw new Exception("amount must be in a valid format");
-			}
-		} catch (Exception e) {
-			throw e;
+		// Whole numbers are minor units, decimals are major units (e.g. "1000" or "10.00")
+		int minor = Validators.parseAmount(amount);
+		if (minor < 0) {
+			throw new Exception("amount must be in a valid format");
 		}
+		this.setAmount(minor);
 	}
 
 	public void setAmount(float amount) throws Exception {
@@ -322,9 +403,10 @@ public class Transaction {
 	}
 
 	public void setCountryCode(String countryCode) throws Exception {
-		if (countryCode.toUpperCase().matches("([A-Z]{2,3}|[0-9]{3})")) {
-			this.formData.put("countryCode", "" + countryCode.toUpperCase());
-			this.countryCode = countryCode.toUpperCase();
+		countryCode = Validators.upperCase(countryCode);
+		if (Validators.isCountryCode(countryCode)) {
+			this.formData.put("countryCode", countryCode);
+			this.countryCode = countryCode;
 		} else {
 			throw new Exception("countryCode must match an ISO Alpha-2, 3 or Numeric code (e.g. GB/GBR/826)");
 		}
@@ -339,9 +421,10 @@ public class Transaction {
 	}
 
 	public void setCurrencyCode(String currencyCode) throws Exception {
-		if (currencyCode.toUpperCase().matches("([A-Z]{3}|[0-9]{3})")) {
-			this.formData.put("currencyCode", "" + currencyCode.toUpperCase());
-			this.currencyCode = currencyCode.toUpperCase();
+		currencyCode = Validators.upperCase(currencyCode);
+		if (Validators.isCurrencyCode(currencyCode)) {
+			this.formData.put("currencyCode", currencyCode);
+			this.currencyCode = currencyCode;
 		} else {
 			throw new Exception("currencyCode must match an ISO 4217 Numeric or Alphabetic code (e.g. 826/GBP)");
 		}
@@ -387,7 +470,7 @@ public class Transaction {
 	}
 
 	public void setCardCVV(String cardCVV) throws Exception {
-		if (cardCVV.matches("([0-9]{2,3})")) {
+		if (Validators.isDigits(cardCVV, 2, 3)) {
 			this.formData.put("cardCVV", cardCVV);
 			this.cardCVV = cardCVV;
 		} else {
@@ -396,16 +479,16 @@ public class Transaction {
 	}
 
 	public void setCardNumber(String cardNumber) throws Exception {
-		if (cardNumber.matches("([0-9]{4}[ ]?){3}([0-9]{3,7})")) {
+		if (Validators.isCardNumber(cardNumber)) {
 			this.formData.put("cardNumber", cardNumber);
 			this.cardNumber = cardNumber;
 		} else {
-			throw new Exception("cardNumber only allows a valid numeric set");
+			throw new Exception("cardNumber must be a valid card number");
 		}
 	}
 
 	public void setCardExpiryDate(String cardExpiryDate) throws Exception {
-		if (cardExpiryDate.matches("([0-9]{2}[-/]?[0-9]{2}|[0-9]{2}[/]?[0-9]{4})")) {
+		if (Validators.isExpiryDate(cardExpiryDate)) {
 			this.formData.put("cardExpiryDate", cardExpiryDate);
 			this.cardExpiryDate = cardExpiryDate;
 		} else {
@@ -414,8 +497,9 @@ public class Transaction {
 	}
 
 	private Boolean isValidFutureDate(int MM, int YY) {
-		int currentYear = Integer.parseInt(Integer.toString((Calendar.getInstance()).get(Calendar.YEAR)).substring(2));
-		int currentMonth = (Calendar.getInstance()).get(Calendar.MONTH) + 1; // Calendar uses 0 index instead of 1
+		Calendar now = Calendar.getInstance();
+		int currentYear = now.get(Calendar.YEAR) % 100;
+		int currentMonth = now.get(Calendar.MONTH) + 1; // Calendar uses 0 index instead of 1
 
 		return (
 			(MM > 0 && MM < 13) &&
@@ -436,7 +520,7 @@ public class Transaction {
 			} else if (month > 12 || month < 1) {
 				throw new Exception("cardExpiryMonth must be a valid numeric month");
 			} else {
-				String strMonth = String.format("%02d", month);
+				String strMonth = Validators.twoDigits(month);
 				this.formData.put("cardExpiryMonth", strMonth);
 				this.cardExpiryMonth = strMonth;
 			}
@@ -467,7 +551,6 @@ public class Transaction {
 			} else if (year < 0 || year > 100) {
 				throw new Exception("cardExpiryYear must be a valid 2-digit year");
 			} else {
-				String strYear = String.format("%02d", year);
 				this.formData.put("cardExpiryYear", cardExpiryYear);
 				this.cardExpiryYear = cardExpiryYear;
 			}
@@ -538,7 +621,7 @@ public class Transaction {
 	}
 
 	public void setCustomerCountryCode(String customerCountryCode) throws Exception {
-		if (customerCountryCode.toUpperCase().matches("([A-Z]{2,3}|[0-9]{3})")) {
+		if (Validators.isCountryCode(Validators.upperCase(customerCountryCode))) {
 			this.formData.put("customerCountryCode", customerCountryCode);
 			this.customerCountryCode = customerCountryCode;
 		} else {
@@ -569,18 +652,32 @@ public class Transaction {
 		this.customerPhone = customerPhone;
 	}
 
+	// Value is the price of one unit in minor units. Once an item is added the amount must
+	// equal the basket total plus any tax value, or less any discount value.
 	public void addItem(String description, int quantity, int value) {
-		//  throw new UnsupportedOperationException("Not supported yet.");
+		if (basket == null) {
+			basket = new Basket();
+		}
+		basket.add(description, quantity, value);
+	}
+
+	// Null until an item is added
+	public Basket getBasket() {
+		return this.basket;
 	}
 
 	public void setTaxValue(int i) {
 		formData.remove("discountValue");
 		formData.put("taxValue", i + "");
+		this.discountValue = null;
+		this.taxValue = i + "";
 	}
 
 	public void setDiscountValue(int i) {
 		formData.remove("taxValue");
 		formData.put("discountValue", i + "");
+		this.taxValue = null;
+		this.discountValue = i + "";
 	}
 
 	public void setTaxDiscountDescription(String description) {
@@ -596,24 +693,29 @@ public class Transaction {
 		return this.httpSuccess;
 	}
 
+	// Null until a response has been received
+	public AuthResponse getAuthResponse() {
+		return this.authResponse;
+	}
+
 	public String getAuthResponseCode() {
-		return this.resCol.get("responseCode");
+		return this.authResponse == null ? null : this.authResponse.get("responseCode");
 	}
 
 	public String getAuthMessage() {
-		return this.resCol.get("responseMessage");
+		return this.authResponse == null ? null : this.authResponse.get("responseMessage");
 	}
 
 	public String getAuthxref() {
-		return this.resCol.get("xref");
+		return this.authResponse == null ? null : this.authResponse.get("xref");
 	}
 
 	public String getAuthOrderDescription() {
-		return this.resCol.get("orderDesc");
+		return this.authResponse == null ? null : this.authResponse.get("orderDesc");
 	}
 
 	public String getAuthTransactionUnique() {
-		return this.resCol.get("transactionUnique");
+		return this.authResponse == null ? null : this.authResponse.get("transactionUnique");
 	}
 
 }
@@ -0,0 +1,166 @@
+/**
+ * Authorise large batches of transactions concurrently
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class TransactionBatch {
+
+	private final int maxConcurrency;
+	private volatile long merchantIntervalNanos = 0;
+	private final ConcurrentHashMap<String, RateLimiter> merchantLimits = new ConcurrentHashMap<>();
+
+	public TransactionBatch(int maxConcurrency) {
+		if (maxConcurrency < 1) {
+			throw new IllegalArgumentException("maxConcurrency must be at least 1");
+		}
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	// Spread each merchant's authorisations so no more than this many start per second (0 for no limit)
+	public void setMerchantRateLimit(double authorisationsPerSecond) {
+		if (authorisationsPerSecond < 0) {
+			throw new IllegalArgumentException("authorisationsPerSecond must not be negative");
+		}
+		this.merchantIntervalNanos = authorisationsPerSecond == 0 ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) / authorisationsPerSecond);
+		this.merchantLimits.clear();
+	}
+
+	// Authorises every transaction, at most maxConcurrency at a time, and returns the
+	// results in the same order as the transactions were given
+	public List<Result> submitAll(List<Transaction> transactions) throws InterruptedException {
+		Result[] results = new Result[transactions.size()];
+		Semaphore permits = new Semaphore(maxConcurrency);
+		CountDownLatch done = new CountDownLatch(results.length);
+		ExecutorService executor = newExecutor();
+
+		try {
+			int index = 0;
+			for (Transaction transaction : transactions) {
+				final int slot = index++;
+				permits.acquire();
+				try {
+					executor.execute(() -> {
+						try {
+							results[slot] = authorise(transaction);
+						} finally {
+							permits.release();
+							done.countDown();
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					permits.release();
+					throw e;
+				}
+			}
+			done.await();
+		} finally {
+			executor.shutdownNow();
+		}
+
+		return Arrays.asList(results);
+	}
+
+	private Result authorise(Transaction transaction) {
+		try {
+			long interval = merchantIntervalNanos;
+			if (interval > 0) {
+				merchantLimits.computeIfAbsent(transaction.getMerchantID(), k -> new RateLimiter(interval)).acquire();
+			}
+			boolean sent = transaction.authorise();
+			return new Result(transaction, sent, sent ? null : transaction.getLastError());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new Result(transaction, false, e);
+		} catch (Exception e) {
+			return new Result(transaction, false, e);
+		}
+	}
+
+	// One daemon thread per permit, kept for the whole batch, so each signs and encodes with the
+	// same Signer and FormEncoder throughout. The permits already bound concurrency.
+	private ExecutorService newExecutor() {
+		return Executors.newFixedThreadPool(maxConcurrency, runnable -> {
+			Thread thread = new Thread(runnable, "cardstream-batch");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public static final class Result {
+
+		private final Transaction transaction;
+		private final boolean sent;
+		private final Exception error;
+
+		Result(Transaction transaction, boolean sent, Exception error) {
+			this.transaction = transaction;
+			this.sent = sent;
+			this.error = error;
+		}
+
+		public Transaction getTransaction() {
+			return this.transaction;
+		}
+
+		// True when the gateway answered; getResponse() then holds the outcome
+		public boolean isSent() {
+			return this.sent;
+		}
+
+		public AuthResponse getResponse() {
+			return this.sent ? this.transaction.getAuthResponse() : null;
+		}
+
+		// Why the transaction was not sent: the validation error thrown by authorise(), the
+		// transport failure, or an InterruptedException if the batch was interrupted first
+		public Exception getError() {
+			return this.error;
+		}
+	}
+
+	private static final class RateLimiter {
+
+		private final long intervalNanos;
+		private long next = System.nanoTime();
+
+		RateLimiter(long intervalNanos) {
+			this.intervalNanos = intervalNanos;
+		}
+
+		void acquire() throws InterruptedException {
+			long wait;
+			synchronized (this) {
+				long now = System.nanoTime();
+				if (next < now) {
+					next = now;
+				}
+				wait = next - now;
+				next += intervalNanos;
+			}
+			if (wait > 0) {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			}
+		}
+	}
+
+}
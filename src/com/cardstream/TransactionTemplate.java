@@ -0,0 +1,176 @@
+/**
+ * Immutable merchant and order fields shared by many transactions
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.util.*;
+
+// Each with* method returns a new template, so one instance can be shared freely between
+// threads. The fields are URL encoded once, when the template is created.
+public final class TransactionTemplate {
+
+	private final String url;
+	private final String preSharedKey;
+	private final byte[] preSharedKeyBytes;
+	private final TreeMap<String, String> fields;
+	private final String[] keys;
+	private final byte[][] encoded;
+
+	public TransactionTemplate(String url, String merchantID, String preSharedKey) throws Exception {
+		this(url, preSharedKey, fields(merchantID));
+	}
+
+	private TransactionTemplate(String url, String preSharedKey, TreeMap<String, String> fields) {
+		this.url = url;
+		this.preSharedKey = preSharedKey;
+		this.preSharedKeyBytes = preSharedKey == null ? new byte[0] : preSharedKey.getBytes();
+		this.fields = fields;
+		this.keys = new String[fields.size()];
+		this.encoded = new byte[fields.size()][];
+
+		FormEncoder encoder = new FormEncoder();
+		int i = 0;
+		for (Map.Entry<String, String> field : fields.entrySet()) {
+			encoder.reset();
+			encoder.add(field.getKey(), field.getValue());
+			keys[i] = field.getKey();
+			encoded[i] = encoder.toByteArray();
+			i++;
+		}
+	}
+
+	private static TreeMap<String, String> fields(String merchantID) throws Exception {
+		if (merchantID == null || merchantID.length() == 0) {
+			throw new Exception("Merchant ID must not be null!");
+		}
+		TreeMap<String, String> fields = new TreeMap<>();
+		fields.put("merchantID", merchantID);
+		return fields;
+	}
+
+	public TransactionTemplate withType(Transaction.TYPE type) {
+		return with("type", Integer.toString(type.getValue()));
+	}
+
+	public TransactionTemplate withAction(Transaction.ACTION action) {
+		return with("action", action.name());
+	}
+
+	public TransactionTemplate withCountryCode(String countryCode) throws Exception {
+		countryCode = Validators.upperCase(countryCode);
+		if (!Validators.isCountryCode(countryCode)) {
+			throw new Exception("countryCode must match an ISO Alpha-2, 3 or Numeric code (e.g. GB/GBR/826)");
+		}
+		return with("countryCode", countryCode);
+	}
+
+	public TransactionTemplate withCountryCode(int countryCode) throws Exception {
+		return withCountryCode(Integer.toString(countryCode));
+	}
+
+	public TransactionTemplate withCurrencyCode(String currencyCode) throws Exception {
+		currencyCode = Validators.upperCase(currencyCode);
+		if (!Validators.isCurrencyCode(currencyCode)) {
+			throw new Exception("currencyCode must match an ISO 4217 Numeric or Alphabetic code (e.g. 826/GBP)");
+		}
+		return with("currencyCode", currencyCode);
+	}
+
+	public TransactionTemplate withCurrencyCode(int currencyCode) throws Exception {
+		return withCurrencyCode(Integer.toString(currencyCode));
+	}
+
+	public TransactionTemplate withCallbackURL(String callbackURL) {
+		return with("callbackURL", callbackURL);
+	}
+
+	public TransactionTemplate withMerchantData(String key, String value) {
+		return with("merchantData[" + key + "]", value);
+	}
+
+	// A new transaction carrying this template's fields; only per-payment fields need setting
+	public Transaction newTransaction() {
+		return new Transaction(this);
+	}
+
+	String getGatewayURL() {
+		return this.url;
+	}
+
+	String getPreSharedKey() {
+		return this.preSharedKey;
+	}
+
+	byte[] getPreSharedKeyBytes() {
+		return this.preSharedKeyBytes;
+	}
+
+	String get(String key) {
+		return this.fields.get(key);
+	}
+
+	// Writes the template fields merged with the transaction's own, in key order.
+	// A transaction field replaces a template field with the same key.
+	void encode(FormEncoder form, SortedMap<String, String> overrides) {
+		merge(form, overrides, 0, keys.length);
+	}
+
+	// As above, with the basket's items written where their keys fall in the order
+	void encode(FormEncoder form, SortedMap<String, String> overrides, Basket basket) {
+		int split = Arrays.binarySearch(keys, Basket.KEY_PREFIX);
+		if (split < 0) {
+			split = -split - 1;
+		}
+		merge(form, overrides.headMap(Basket.KEY_PREFIX), 0, split);
+		basket.encode(form);
+		merge(form, overrides.tailMap(Basket.KEY_PREFIX), split, keys.length);
+	}
+
+	private void merge(FormEncoder form, SortedMap<String, String> overrides, int from, int to) {
+		Iterator<Map.Entry<String, String>> iterator = overrides.entrySet().iterator();
+		Map.Entry<String, String> next = iterator.hasNext() ? iterator.next() : null;
+
+		for (int i = from; i < to; i++) {
+			int order = 1;
+			while (next != null && (order = next.getKey().compareTo(keys[i])) <= 0) {
+				form.add(next.getKey(), next.getValue());
+				next = iterator.hasNext() ? iterator.next() : null;
+				if (order == 0) {
+					break;
+				}
+			}
+			if (order != 0) {
+				form.addEncoded(encoded[i]);
+			}
+		}
+
+		while (next != null) {
+			form.add(next.getKey(), next.getValue());
+			next = iterator.hasNext() ? iterator.next() : null;
+		}
+	}
+
+	private TransactionTemplate with(String key, String value) {
+		TreeMap<String, String> copy = new TreeMap<>(fields);
+		copy.put(key, value);
+		return new TransactionTemplate(url, preSharedKey, copy);
+	}
+
+}
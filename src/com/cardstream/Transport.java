@@ -0,0 +1,48 @@
+/**
+ * Pluggable HTTP transport used to deliver signed forms to the gateway
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+public interface Transport extends Closeable {
+
+	// POST length bytes of body, starting at offset, as application/x-www-form-urlencoded.
+	// Implementations must be safe to share between threads and Transaction instances.
+	TransportResponse post(URL url, byte[] body, int offset, int length) throws IOException;
+
+	// Transports without non-blocking I/O run post() on the executor instead.
+	// The body must not be modified until the returned future completes.
+	default CompletableFuture<TransportResponse> postAsync(URL url, byte[] body, int offset, int length, Executor executor) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return post(url, body, offset, length);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, executor);
+	}
+
+}
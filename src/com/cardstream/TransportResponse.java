@@ -0,0 +1,86 @@
+/**
+ * Raw HTTP reply returned by a Transport
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Locale;
+
+public final class TransportResponse {
+
+	private final int status;
+	private final byte[] body;
+	private final int length;
+	private final Charset charset;
+
+	public TransportResponse(int status, byte[] body, int length) {
+		this(status, body, length, null);
+	}
+
+	public TransportResponse(int status, byte[] body, int length, Charset charset) {
+		this.status = status;
+		this.body = body;
+		this.length = length;
+		this.charset = charset;
+	}
+
+	public int getStatus() {
+		return this.status;
+	}
+
+	// The body array may be larger than the reply; only the first getLength() bytes are valid
+	public byte[] getBody() {
+		return this.body;
+	}
+
+	public int getLength() {
+		return this.length;
+	}
+
+	// From the Content-Type header, or null if the reply did not name a supported charset
+	public Charset getCharset() {
+		return this.charset;
+	}
+
+	// The charset parameter of a Content-Type value, or null
+	static Charset charsetOf(String contentType) {
+		if (contentType == null) {
+			return null;
+		}
+		int index = contentType.toLowerCase(Locale.ROOT).indexOf("charset=");
+		if (index < 0) {
+			return null;
+		}
+		int start = index + 8;
+		int end = contentType.indexOf(';', start);
+		String name = contentType.substring(start, end < 0 ? contentType.length() : end).trim();
+		if (name.length() > 1 && name.charAt(0) == '"' && name.charAt(name.length() - 1) == '"') {
+			name = name.substring(1, name.length() - 1);
+		}
+		try {
+			return Charset.forName(name);
+		} catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,165 @@
+/**
+ * Lock-free generator of unique, time-ordered transaction IDs
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.security.SecureRandom;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
+
+// IDs are 64-bit values written as 16 lowercase hex digits: 41 bits of milliseconds since
+// 2017-01-01, a 10-bit node ID and a 12-bit sequence. Each ID is claimed with a single CAS and
+// is greater than the last one issued by this generator. Past 4096 IDs in a millisecond, or
+// if the wall clock steps backwards, the timestamp runs ahead of the clock instead of waiting.
+// Give every process that shares a merchant account its own node ID to keep IDs unique
+// across the cluster.
+public final class UniqueIdGenerator {
+
+	public static final int MAX_NODE_ID = 1023;
+
+	private static final long EPOCH = 1483228800000L;
+	private static final int SEQUENCE_BITS = 12;
+	private static final int NODE_BITS = 10;
+	private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final long node;
+	private final AtomicLong last = new AtomicLong();
+
+	public UniqueIdGenerator(int nodeId) {
+		if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+			throw new IllegalArgumentException("nodeId must be between 0 and " + MAX_NODE_ID);
+		}
+		this.node = (long) nodeId << SEQUENCE_BITS;
+	}
+
+	// Uses the cardstream.nodeId system property. Without it the node ID is a hash of the
+	// machine's hardware addresses, host name and process ID, which is stable for the life of the
+	// process but can still collide with another's, so a warning is logged. An invalid property
+	// is logged and treated as unset, as failing here would fail every transaction in the JVM.
+	public static UniqueIdGenerator getDefault() {
+		return DefaultHolder.INSTANCE;
+	}
+
+	public int getNodeId() {
+		return (int) (node >>> SEQUENCE_BITS);
+	}
+
+	public long nextId() {
+		long now = (System.currentTimeMillis() - EPOCH) << SEQUENCE_BITS;
+		long prev;
+		long next;
+		do {
+			prev = last.get();
+			next = now > prev ? now : prev + 1;
+		} while (!last.compareAndSet(prev, next));
+
+		// The timestamp and sequence are kept together in last; the node ID goes between them
+		return (next & ~SEQUENCE_MASK) << NODE_BITS | node | (next & SEQUENCE_MASK);
+	}
+
+	public String next() {
+		return next("", false);
+	}
+
+	// moreEntropy appends a dot and 8 random hex digits from a shared, non-blocking SecureRandom
+	public String next(String prefix, boolean moreEntropy) {
+		int length = prefix.length();
+		char[] out = new char[length + 16 + (moreEntropy ? 9 : 0)];
+		prefix.getChars(0, length, out, 0);
+		writeHex(out, length, nextId(), 16);
+		if (moreEntropy) {
+			out[length + 16] = '.';
+			writeHex(out, length + 17, EntropyHolder.RANDOM.nextInt() & 0xFFFFFFFFL, 8);
+		}
+		return new String(out);
+	}
+
+	private static void writeHex(char[] out, int offset, long value, int digits) {
+		for (int i = offset + digits - 1; i >= offset; i--) {
+			out[i] = HEX[(int) value & 0xF];
+			value >>>= 4;
+		}
+	}
+
+	private static final class DefaultHolder {
+		static final UniqueIdGenerator INSTANCE = new UniqueIdGenerator(defaultNodeId());
+
+		private static int defaultNodeId() {
+			System.Logger logger = System.getLogger(UniqueIdGenerator.class.getName());
+			String nodeId = System.getProperty("cardstream.nodeId");
+			if (nodeId != null) {
+				try {
+					int parsed = Integer.parseInt(nodeId.trim());
+					if (parsed >= 0 && parsed <= MAX_NODE_ID) {
+						return parsed;
+					}
+				} catch (NumberFormatException e) {
+					// Reported below with the out of range values
+				}
+				int derived = derivedNodeId();
+				logger.log(System.Logger.Level.WARNING,
+					"cardstream.nodeId \"{0}\" is not a number from 0 to " + MAX_NODE_ID + ", using node ID {1} "
+					+ "derived from this host and process instead. Derived IDs may collide with other processes.",
+					nodeId, derived);
+				return derived;
+			}
+			int derived = derivedNodeId();
+			logger.log(System.Logger.Level.WARNING,
+				"cardstream.nodeId is not set, using node ID {0} derived from this host and process. "
+				+ "Set a distinct cardstream.nodeId on every process sharing a merchant account, "
+				+ "as derived IDs may collide.", derived);
+			return derived;
+		}
+
+		// Avoids InetAddress.getLocalHost(), which can wait on DNS
+		private static int derivedNodeId() {
+			long hash = ProcessHandle.current().pid();
+			hash = hash * 31 + String.valueOf(System.getenv("HOSTNAME")).hashCode();
+			hash = hash * 31 + String.valueOf(System.getenv("COMPUTERNAME")).hashCode();
+			try {
+				Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+				while (interfaces != null && interfaces.hasMoreElements()) {
+					byte[] address = interfaces.nextElement().getHardwareAddress();
+					if (address != null) {
+						for (byte b : address) {
+							hash = hash * 31 + b;
+						}
+					}
+				}
+			} catch (SocketException e) {
+				// The host name and process ID are still enough to tell most processes apart
+			}
+			// Mixes every bit of the hash into the low ten
+			hash ^= hash >>> 33;
+			hash *= 0xff51afd7ed558ccdL;
+			hash ^= hash >>> 33;
+			return (int) (hash & MAX_NODE_ID);
+		}
+	}
+
+	// Seeded once from the platform's non-blocking source; nextInt() never waits for entropy
+	private static final class EntropyHolder {
+		static final SecureRandom RANDOM = new SecureRandom();
+	}
+
+}
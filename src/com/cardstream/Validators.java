@@ -0,0 +1,215 @@
+/**
+ * Field validation for transaction setters
+ *
+ * Cardstream Java SDK
+ * Copyright (C) 2017  Cardstream
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+package com.cardstream;
+
+import java.util.Currency;
+import java.util.Locale;
+
+// Hand-rolled character scans in place of String.matches, plus ISO lookup tables
+final class Validators {
+
+	private static final boolean[] COUNTRY_ALPHA2 = new boolean[26 * 26];
+	private static final boolean[] COUNTRY_ALPHA3 = new boolean[26 * 26 * 26];
+	private static final boolean[] CURRENCY_ALPHA = new boolean[26 * 26 * 26];
+	private static final boolean[] CURRENCY_NUMERIC = new boolean[1000];
+
+	static {
+		for (String code : Locale.getISOCountries(Locale.IsoCountryCode.PART1_ALPHA2)) {
+			COUNTRY_ALPHA2[alphaIndex(code)] = true;
+		}
+		for (String code : Locale.getISOCountries(Locale.IsoCountryCode.PART1_ALPHA3)) {
+			COUNTRY_ALPHA3[alphaIndex(code)] = true;
+		}
+		for (Currency currency : Currency.getAvailableCurrencies()) {
+			int index = alphaIndex(currency.getCurrencyCode());
+			if (index >= 0) {
+				CURRENCY_ALPHA[index] = true;
+			}
+			int numeric = currency.getNumericCode();
+			if (numeric > 0 && numeric < 1000) {
+				CURRENCY_NUMERIC[numeric] = true;
+			}
+		}
+	}
+
+	private Validators() {
+	}
+
+	// ISO 3166-1 alpha-2 or alpha-3 code, or any three digit numeric code, in upper case
+	static boolean isCountryCode(String code) {
+		int length = code.length();
+		if (length == 3 && isDigits(code, 3, 3)) {
+			return true;
+		}
+		int index = alphaIndex(code);
+		if (index < 0) {
+			return false;
+		}
+		return length == 2 ? COUNTRY_ALPHA2[index] : COUNTRY_ALPHA3[index];
+	}
+
+	// ISO 4217 alphabetic or numeric code, in upper case
+	static boolean isCurrencyCode(String code) {
+		if (code.length() != 3) {
+			return false;
+		}
+		if (isDigits(code, 3, 3)) {
+			return CURRENCY_NUMERIC[(code.charAt(0) - '0') * 100 + (code.charAt(1) - '0') * 10 + (code.charAt(2) - '0')];
+		}
+		int index = alphaIndex(code);
+		return index >= 0 && CURRENCY_ALPHA[index];
+	}
+
+	// Three groups of four digits, each optionally followed by a space, then 3-7 digits,
+	// where the digits pass the Luhn check
+	static boolean isCardNumber(String number) {
+		int length = number.length();
+		int pos = 0;
+		for (int group = 0; group < 3; group++) {
+			if (!isDigits(number, pos, pos + 4, length)) {
+				return false;
+			}
+			pos += 4;
+			if (pos < length && number.charAt(pos) == ' ') {
+				pos++;
+			}
+		}
+		int tail = length - pos;
+		if (tail < 3 || tail > 7 || !isDigits(number, pos, length, length)) {
+			return false;
+		}
+
+		int sum = 0;
+		boolean doubled = false;
+		for (int i = length - 1; i >= 0; i--) {
+			char c = number.charAt(i);
+			if (c == ' ') {
+				continue;
+			}
+			int digit = c - '0';
+			if (doubled) {
+				digit *= 2;
+				if (digit > 9) {
+					digit -= 9;
+				}
+			}
+			sum += digit;
+			doubled = !doubled;
+		}
+		return sum % 10 == 0;
+	}
+
+	// MMYY, MM-YY, MM/YY, MMYYYY or MM/YYYY
+	static boolean isExpiryDate(String date) {
+		int length = date.length();
+		if (length < 4 || length > 7 || !isDigits(date, 0, 2, length)) {
+			return false;
+		}
+		int pos = 2;
+		char separator = date.charAt(pos);
+		if (separator == '/' || (separator == '-' && length == 5)) {
+			pos++;
+		}
+		int year = length - pos;
+		return (year == 2 || year == 4) && isDigits(date, pos, length, length);
+	}
+
+	static boolean isDigits(String s, int min, int max) {
+		int length = s.length();
+		return length >= min && length <= max && isDigits(s, 0, length, length);
+	}
+
+	// Parses [0-9]+ as minor units, or [0-9]+.[0-9]+ as major units truncated to two decimal
+	// places. Returns -1 if the amount is malformed or too large.
+	static int parseAmount(String amount) {
+		int length = amount.length();
+		int point = amount.indexOf('.');
+		int end = point < 0 ? length : point;
+		if (end == 0 || !isDigits(amount, 0, end, length)) {
+			return -1;
+		}
+		long value = 0;
+		for (int i = 0; i < end; i++) {
+			value = value * 10 + (amount.charAt(i) - '0');
+			if (value > Integer.MAX_VALUE) {
+				return -1;
+			}
+		}
+		if (point < 0) {
+			return (int) value;
+		}
+
+		if (point == length - 1 || !isDigits(amount, point + 1, length, length)) {
+			return -1;
+		}
+		int tenths = amount.charAt(point + 1) - '0';
+		int hundredths = point + 2 < length ? amount.charAt(point + 2) - '0' : 0;
+		value = value * 100 + tenths * 10 + hundredths;
+		return value > Integer.MAX_VALUE ? -1 : (int) value;
+	}
+
+	// Upper cases ASCII letters, returning the same string when nothing changes
+	static String upperCase(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= 'a' && c <= 'z' || c > 0x7F) {
+				return s.toUpperCase(Locale.ROOT);
+			}
+		}
+		return s;
+	}
+
+	// Two digit, zero padded form of a value between 0 and 99
+	static String twoDigits(int value) {
+		return value < 10 ? "0" + value : Integer.toString(value);
+	}
+
+	private static boolean isDigits(String s, int start, int end, int length) {
+		if (end > length) {
+			return false;
+		}
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Index of a two or three letter upper case code, or -1
+	private static int alphaIndex(String code) {
+		int length = code.length();
+		if (length < 2 || length > 3) {
+			return -1;
+		}
+		int index = 0;
+		for (int i = 0; i < length; i++) {
+			int c = code.charAt(i) - 'A';
+			if (c < 0 || c >= 26) {
+				return -1;
+			}
+			index = index * 26 + c;
+		}
+		return index;
+	}
+
+}